@@ -0,0 +1,289 @@
+package assembler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+
+/**Throughput and allocation benchmarks for the assembler pipeline
+ *
+ * A dependency-free stand-in for JMH, since the build has no dependencies to pull it in with. Each benchmark runs
+ * warm-up iterations and then measured iterations of roughly ITERATION_NANOS each, and reports operations per
+ * second, nanoseconds per operation and bytes allocated per operation on the calling thread (the figure JMH's
+ * gc profiler reports as gc.alloc.rate.norm). Rows whose work runs on a thread pool print "-" for B/op: the
+ * pool's threads end with each run, and ThreadMXBean cannot read what a thread allocated once it has ended, so
+ * the calling thread's figure would leave most of the allocation out.
+ *
+ * Run from "Tim's Assembler":
+ *   javac -d bench-classes $(find src bench -name '*.java')
+ *   java -cp bench-classes assembler.Benchmarks [lines per corpus...] > bench/baseline.txt
+ */
+public class Benchmarks {
+	static final int WARM_UP_ITERATIONS = 3;
+	static final int MEASURED_ITERATIONS = 5;
+	static final long ITERATION_NANOS = 200_000_000L;
+
+	/**
+	 * One sample line per opcode family, in both register and F-register payload forms where there is one
+	 */
+	static final String[][] FAMILIES = {
+		{ "JMP", "JMP 1234" },
+		{ "JMZ/JNG", "JMZ D,9 10F0" },
+		{ "LDI", "LDI 3 1234" },
+		{ "ADD/SUB/MUL/DIV", "ADD D,3 2" },
+		{ "ADD/SUB/MUL/DIV F", "ADD F,3 2 0001" },
+		{ "WTR/WOP", "WTR A B" },
+		{ "WTR/WOP F", "WTR F B 0110" },
+		{ "INP", "INP A" },
+		{ "RES", "RES" },
+		{ "LDR", "LDR D A" },
+		{ "LDR F", "LDR F A 0110" },
+	};
+
+	/**
+	 * Seed of the generated file-to-file corpora, fixed so runs stay comparable with the baseline
+	 */
+	static final long CORPUS_SEED = 1;
+
+	/**
+	 * Lines for the per-line benchmarks, mixing every family with comments, blank lines and irregular whitespace
+	 */
+	static final String[] CORPUS = {
+		"LDI 3 1234", "  jmp 1234", "JMZ D,9   10F0 ; loop", "JNG 1,2 0004", "\tADD D,3 2", "ADD F,3 2 1010 # offset",
+		"", "sub 1,2 3", "MUL 4,5 6", "DIV 7,8 9", "// comment only", "WTR A B", "WTR F B 0110", "INP c",
+		"WOP 3,b", "WOP F,b 0040", "RES", "LDR D A", "LDR F A 0110",
+	};
+
+	/**
+	 * Number of distinct labels in the symbol table benchmarks
+	 */
+	static final int LABELS = 1_000_000;
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	private static final PrintStream QUIET = new PrintStream(new OutputStream() {
+		@Override
+		public void write(int b) { }
+	});
+
+	static volatile long sink;
+
+	/**A benchmark body running the given number of operations
+	 */
+	interface Body {
+		void run(long operations) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int[] corpusSizes = { 10_000, 100_000, 1_000_000 };
+		if (args.length > 0) {
+			corpusSizes = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+				corpusSizes[i] = Integer.parseInt(args[i]);
+		}
+
+		System.out.println("# java " + System.getProperty("java.version") + ", " + Runtime.getRuntime().availableProcessors() + " core(s)");
+		System.out.printf("%-40s %14s %10s %10s%n", "Benchmark", "ops/s", "ns/op", "B/op");
+
+		AppOptions options = new AppOptions(null, null, false, false, false);
+		options.log = QUIET;
+		Lexer tokens = new Lexer();
+		ProgramImage image = new ProgramImage(1 << 16);
+
+		report("lex (corpus line)", n -> {
+			for (long i = 0; i < n; i++)
+				sink += tokens.lex(CORPUS[(int) (i % CORPUS.length)]);
+		});
+		report("determineCode linear scan (corpus line)", n -> {
+			for (long i = 0; i < n; i++) {
+				OpCodes opcode = linearDetermineCode(CORPUS[(int) (i % CORPUS.length)]);
+				sink += opcode == null ? -1 : opcode.ordinal();
+			}
+		});
+		report("determineCode(String) (corpus line)", n -> {
+			for (long i = 0; i < n; i++) {
+				OpCodes opcode = OpCodes.determineCode(CORPUS[(int) (i % CORPUS.length)]);
+				sink += opcode == null ? -1 : opcode.ordinal();
+			}
+		});
+		Lexer[] lexed = new Lexer[CORPUS.length];
+		for (int i = 0; i < lexed.length; i++) {
+			lexed[i] = new Lexer();
+			lexed[i].lex(CORPUS[i]);
+		}
+		report("determineCode(Lexer) (lexed corpus line)", n -> {
+			for (long i = 0; i < n; i++)
+				sink += OpCodes.determineCode(lexed[(int) (i % lexed.length)]).ordinal();
+		});
+		for (String[] family : FAMILIES) {
+			report("interpretForward " + family[0], n -> {
+				tokens.lex(family[1]);
+				OpCodes opcode = OpCodes.determineCode(tokens);
+				for (long i = 0; i < n; i++) {
+					if (image.size() == 1 << 16)
+						image.clear();
+					OpCodes.interpretForward(tokens, image, null, opcode, options);
+				}
+				sink += image.size();
+			});
+		}
+		int[] words = new int[FAMILIES.length];
+		image.clear();
+		for (String[] family : FAMILIES) {
+			tokens.lex(family[1]);
+			OpCodes.interpretForward(tokens, image, null, OpCodes.determineCode(tokens), options);
+		}
+		for (int i = 0; i < words.length; i++)
+			words[i] = image.get(i);
+		char[] line = new char[OpCodes.MAX_REVERSE_LENGTH];
+		report("interpretReverse (family word)", n -> {
+			for (long i = 0; i < n; i++)
+				sink += OpCodes.interpretReverse(words[(int) (i % words.length)], line, 0);
+		});
+		controlFlowGraph(words);
+
+		symbolTable();
+
+		for (int lines : corpusSizes) {
+			File source = writeCorpus(lines);
+			File output = File.createTempFile("bench", ".bin");
+			int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+			try {
+				endToEnd("file-to-file reader", lines, source, output, options, false, 0);
+				endToEnd("file-to-file mmap", lines, source, output, options, true, 0);
+				endToEnd("file-to-file threads=" + threads, lines, source, output, options, true, threads);
+			}
+			finally {
+				source.delete();
+				output.delete();
+			}
+		}
+	}
+
+	/**Mnemonic lookup as it was before the dispatch table: a scan of values(), upper-casing the line for every
+	 * constant. Kept as the "before" that determineCode(String) is measured against, on the same lines
+	 */
+	private static OpCodes linearDetermineCode(String line) {
+		for (OpCodes opcode : OpCodes.values()) {
+			if (line.toUpperCase().startsWith(opcode.toString()))
+				return opcode;
+		}
+		return null;
+	}
+
+	/**Benchmarks whole assembly runs; one operation is one source line
+	 */
+	private static void endToEnd(String name, int lines, File source, File output, AppOptions base, boolean mapped, int threads) throws Exception {
+		AppOptions job = base.forJob(source.getPath(), output.getPath());
+		job.isMapped = mapped;
+		job.threads = threads;
+		report(name + " " + lines + " lines", n -> {
+			for (long done = 0; done < n; done += lines)
+				sink += new Assembler(job).run();
+		}, lines, threads == 0);
+	}
+
+	/**Benchmarks finding the basic blocks of a full 16-bit address space; one operation is one word
+	 */
+	private static void controlFlowGraph(int[] families) throws Exception {
+		//Every family in turn, payloads strided over the address space so jumps land all over it
+		int size = ControlFlowGraph.MAX_WORDS;
+		int[] rom = new int[size];
+		for (int i = 0; i < size; i++)
+			rom[i] = families[i % families.length] & 0xFFFF0000 | (i * 7919) & 0xFFFF;
+		report("ControlFlowGraph.build " + size + " words", n -> {
+			for (long done = 0; done < n; done += size) {
+				ControlFlowGraph graph = new ControlFlowGraph();
+				for (int i = 0; i < size; i++)
+					graph.add(i, rom[i], 1);
+				graph.limit(size);
+				graph.build();
+				sink += graph.blocks();
+			}
+		}, size, true);
+	}
+
+	/**Benchmarks defining and finding labels in a table holding LABELS of them; one operation is one label
+	 */
+	private static void symbolTable() throws Exception {
+		//Fixed-width names "L0000000".."L00F423F", one per line, looked up in place like the lexer does
+		StringBuilder names = new StringBuilder(LABELS * 9);
+		for (int i = 0; i < LABELS; i++)
+			names.append(String.format("L%07X", i)).append('\n');
+
+		SymbolTable[] table = { new SymbolTable() };
+		report("SymbolTable.define " + LABELS + " labels", n -> {
+			for (long i = 0; i < n; i++) {
+				int label = (int) (i % LABELS);
+				if (label == 0)
+					table[0] = new SymbolTable();
+				table[0].define(names, label * 9, label * 9 + 8, label);
+			}
+		}, LABELS, true);
+
+		SymbolTable full = new SymbolTable();
+		for (int label = 0; label < LABELS; label++)
+			full.define(names, label * 9, label * 9 + 8, label);
+		report("SymbolTable.find " + LABELS + " labels", n -> {
+			//Stride through the names so consecutive lookups land far apart in the table
+			for (long i = 0; i < n; i++) {
+				int label = (int) ((i * 7919) % LABELS);
+				sink += full.find(names, label * 9, label * 9 + 8);
+			}
+		});
+	}
+
+	private static File writeCorpus(int lines) throws IOException {
+		File source = File.createTempFile("bench", ".asm");
+		try (Writer out = Files.newBufferedWriter(source.toPath())) {
+			new SourceGenerator(CORPUS_SEED).generate(lines, out, null);
+		}
+		return source;
+	}
+
+	private static void report(String name, Body body) throws Exception {
+		report(name, body, 1, true);
+	}
+
+	/**Runs warm-up and measured iterations of a benchmark and prints one result line
+	 * @param Benchmark name
+	 * @param Benchmark body
+	 * @param Smallest useful batch of operations
+	 * @param False if the body allocates on other threads, so the calling thread's allocation is not reported
+	 */
+	private static void report(String name, Body body, long granularity, boolean callingThread) throws Exception {
+		long tid = Thread.currentThread().getId();
+		long batch = granularity;
+		for (int i = 0; i < WARM_UP_ITERATIONS; i++)
+			batch = iteration(body, batch)[2];
+
+		long operations = 0, nanos = 0, bytes = 0;
+		for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+			long startBytes = THREADS.getThreadAllocatedBytes(tid);
+			long[] result = iteration(body, batch);
+			bytes += THREADS.getThreadAllocatedBytes(tid) - startBytes;
+			operations += result[0];
+			nanos += result[1];
+		}
+		System.out.printf("%-40s %14.0f %10.1f %10s%n", name, operations * 1e9 / nanos, (double) nanos / operations,
+				callingThread ? String.format("%.1f", (double) bytes / operations) : "-");
+	}
+
+	/**Runs batches of operations, doubling the batch size, until one iteration's time has passed
+	 * @return Operations run, nanoseconds taken and the batch size reached
+	 */
+	private static long[] iteration(Body body, long batch) throws Exception {
+		long operations = 0, start = System.nanoTime(), elapsed;
+		do {
+			body.run(batch);
+			operations += batch;
+			elapsed = System.nanoTime() - start;
+			if (elapsed < ITERATION_NANOS / 4)
+				batch *= 2;
+		} while (elapsed < ITERATION_NANOS);
+		return new long[] { operations, elapsed, batch };
+	}
+}
@@ -0,0 +1,293 @@
+package assembler;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.SplittableRandom;
+
+/**Deterministic generator of large, valid LogiTim assembly sources
+ *
+ * Streams any number of lines in constant memory. Lines cover every mnemonic in OpCodes, with and without the
+ * F-register payload form, mixed with blank lines, comments of every style, mixed case and irregular whitespace.
+ * The same seed always gives the same source.
+ *
+ * The expected "v2.0 raw" image can be written alongside. It is computed from the generated fields, without
+ * going through OpCodes, so it works as an oracle for the assembler's fast paths:
+ *   java -cp bench-classes assembler.SourceGenerator 10000000 42 big.asm big.expected
+ *   java -cp bench-classes assembler.Main -m -i big.asm -o big.bin && cmp big.bin big.expected
+ *
+ * With -f the lines are wrapped in a jump on the first line to a label on the last, so one fixup waits on the
+ * label over the whole source. A label past address FFFF cannot be a payload, so in a source of more words the
+ * assembler reports it as out of range and leaves the jump's payload 0000, as the expected image does.
+ */
+public class SourceGenerator {
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	private static final String[] SEPARATORS = { " ", ",", ", ", "\t", "  ", " ,\t" };
+	private static final String[] ARITHMETIC = { "ADD", "SUB", "MUL", "DIV" };
+	private static final String[] COMMENTS = { " ; note", "\t// note", " #note", ";", "   // x, y ; z" };
+
+	private final SplittableRandom random;
+	private final StringBuilder line = new StringBuilder(64);
+	private int runWord, runLength;
+
+	/**
+	 * @param Seed deciding every generated line
+	 */
+	public SourceGenerator(long seed) {
+		random = new SplittableRandom(seed);
+	}
+
+	/**Writes the given number of source lines
+	 * @param Number of lines to write, including blank and comment lines
+	 * @param Writer receiving the source
+	 * @param Writer receiving the expected "v2.0 raw" image, or null
+	 */
+	public void generate(long lines, Writer source, Writer expected) throws IOException {
+		if (expected != null)
+			expected.write("v2.0 raw\n");
+		for (long i = 0; i < lines; i++) {
+			line.setLength(0);
+			int word = nextLine();
+			source.append(line).append('\n');
+			if (expected != null && word != NO_WORD)
+				add(word, expected);
+		}
+		if (expected != null && runLength > 0)
+			writeRun(expected);
+	}
+
+	/**Writes the given number of source lines between a jump and the label it jumps to
+	 * @param Number of lines to write between them
+	 * @param Number of words those lines assemble to, as counted by a generator with the same seed
+	 * @param Writer receiving the source
+	 * @param Writer receiving the expected "v2.0 raw" image, or null
+	 */
+	public void generateForward(long lines, long words, Writer source, Writer expected) throws IOException {
+		//The label is on the word after the jump and the lines
+		long label = words + 1;
+		source.append("JMP xend\n");
+		if (expected != null) {
+			expected.write("v2.0 raw\n");
+			add(encode(0x1, 0xF, 0, 0, label <= 0xFFFF ? (int) label : 0), expected);
+		}
+		for (long i = 0; i < lines; i++) {
+			line.setLength(0);
+			int word = nextLine();
+			source.append(line).append('\n');
+			if (expected != null && word != NO_WORD)
+				add(word, expected);
+		}
+		source.append("xend: RES\n");
+		if (expected != null) {
+			add(encode(0xB, 0, 0, 0, 0), expected);
+			writeRun(expected);
+		}
+	}
+
+	/**Counts the words the given number of lines assemble to, without writing them
+	 */
+	public long count(long lines) {
+		long words = 0;
+		for (long i = 0; i < lines; i++) {
+			line.setLength(0);
+			if (nextLine() != NO_WORD)
+				words++;
+		}
+		return words;
+	}
+
+	/**Adds a word to the expected image, writing out the run before it once the word ends that run
+	 */
+	private void add(int word, Writer expected) throws IOException {
+		if (runLength > 0 && word != runWord)
+			writeRun(expected);
+		runWord = word;
+		runLength++;
+	}
+
+	/**
+	 * Returned by nextLine for lines which assemble to nothing; no real instruction has opcode nibble 0
+	 */
+	private static final int NO_WORD = 0;
+
+	/**Builds one line into the line buffer
+	 * @return Encoded word the line should assemble to, or NO_WORD
+	 */
+	private int nextLine() {
+		int roll = random.nextInt(100);
+		if (roll < 3)
+			return NO_WORD;
+		if (roll < 6) {
+			indent();
+			line.append(COMMENTS[random.nextInt(COMMENTS.length)].trim());
+			return NO_WORD;
+		}
+
+		indent();
+		int opcode = 1 + random.nextInt(13);
+		int a = random.nextInt(16), b = random.nextInt(16), c = random.nextInt(16);
+		int payload = random.nextInt(0x10000);
+		boolean payloadForm = random.nextBoolean();
+		int word;
+
+		switch (opcode) {
+		case 0x1:
+			mnemonic("JMP");
+			space(); payload(payload);
+			word = encode(opcode, 0xF, 0, 0, payload);
+			break;
+		case 0x2:
+		case 0x3:
+			mnemonic(opcode == 0x2 ? "JMZ" : "JNG");
+			space(); register(a); separator(); register(b); space(); payload(payload);
+			word = encode(opcode, 0xF, a, b, payload);
+			break;
+		case 0x4:
+		case 0x5:
+		case 0x6:
+		case 0x7:
+			mnemonic(ARITHMETIC[opcode - 4]);
+			if (payloadForm)
+				a = 0xF;
+			space(); register(a); separator(); register(b); space(); register(c);
+			if (payloadForm) {
+				space(); payload(payload);
+			}
+			word = encode(opcode, c, a, b, payloadForm ? payload : 0);
+			break;
+		case 0x8:
+		case 0xA:
+			mnemonic(opcode == 0x8 ? "WTR" : "WOP");
+			if (payloadForm)
+				a = 0xF;
+			space(); register(a); separator(); register(b);
+			if (payloadForm) {
+				space(); payload(payload);
+			}
+			word = encode(opcode, 0, a, b, payloadForm ? payload : 0);
+			break;
+		case 0x9:
+			mnemonic("INP");
+			space(); register(a);
+			word = encode(opcode, a, 0, 0, 0);
+			break;
+		case 0xB:
+			mnemonic("RES");
+			word = encode(opcode, 0, 0, 0, 0);
+			break;
+		case 0xC:
+			mnemonic("LDI");
+			space(); register(a); space(); payload(payload);
+			word = encode(opcode, a, 0, 0, payload);
+			break;
+		default:
+			mnemonic("LDR");
+			if (payloadForm)
+				a = 0xF;
+			space(); register(a); separator(); register(b);
+			if (payloadForm) {
+				space(); payload(payload);
+			}
+			word = encode(opcode, b, a, 0, payloadForm ? payload : 0);
+			break;
+		}
+
+		if (random.nextInt(10) == 0)
+			line.append(COMMENTS[random.nextInt(COMMENTS.length)]);
+		else if (random.nextInt(10) == 0)
+			line.append(random.nextBoolean() ? " " : "\t");
+		return word;
+	}
+
+	private static int encode(int opcode, int nreg, int r2, int r1, int payload) {
+		return opcode << 28 | nreg << 24 | r2 << 20 | r1 << 16 | payload;
+	}
+
+	private void indent() {
+		switch (random.nextInt(8)) {
+		case 0: line.append(' '); break;
+		case 1: line.append('\t'); break;
+		case 2: line.append("    "); break;
+		default: break;
+		}
+	}
+
+	private void mnemonic(String name) {
+		int caseStyle = random.nextInt(6);
+		for (int i = 0; i < name.length(); i++) {
+			char ch = name.charAt(i);
+			line.append(caseStyle == 0 || (caseStyle == 1 && i > 0) ? Character.toLowerCase(ch) : ch);
+		}
+	}
+
+	private void space() {
+		line.append(random.nextInt(4) == 0 ? "\t" : random.nextInt(4) == 0 ? "   " : " ");
+	}
+
+	private void separator() {
+		line.append(SEPARATORS[random.nextInt(SEPARATORS.length)]);
+	}
+
+	private void register(int value) {
+		hexDigit(value);
+	}
+
+	/**Writes a payload, sometimes dropping leading zeroes since short payloads are zero-padded
+	 */
+	private void payload(int value) {
+		int digits = 4;
+		if (random.nextInt(8) == 0)
+			while (digits > 1 && (value >>> (digits - 1) * 4) == 0)
+				digits--;
+		for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4)
+			hexDigit((value >>> shift) & 0xF);
+	}
+
+	private void hexDigit(int value) {
+		char ch = HEX[value];
+		line.append(random.nextInt(4) == 0 ? Character.toLowerCase(ch) : ch);
+	}
+
+	/**Writes the run of equal words ending here, as "count*word" once it is RawImageWriter.MIN_RUN long
+	 */
+	private void writeRun(Writer out) throws IOException {
+		if (runLength >= RawImageWriter.MIN_RUN) {
+			out.write(Integer.toString(runLength));
+			out.write('*');
+			runLength = 1;
+		}
+		for (; runLength > 0; runLength--)
+			writeWord(out, runWord);
+	}
+
+	private static void writeWord(Writer out, int word) throws IOException {
+		for (int shift = 28; shift >= 0; shift -= 4)
+			out.write(HEX[(word >>> shift) & 0xF]);
+		out.write('\n');
+	}
+
+	/**
+	 * Usage: SourceGenerator [-f] <lines> <seed> <source file> [expected output file]
+	 */
+	public static void main(String[] args) throws IOException {
+		boolean forward = args.length > 0 && args[0].equals("-f");
+		int first = forward ? 1 : 0;
+		if (args.length - first < 3) {
+			System.err.println("usage: SourceGenerator [-f] <lines> <seed> <source file> [expected output file]");
+			System.exit(2);
+		}
+		long lines = Long.parseLong(args[first]), seed = Long.parseLong(args[first + 1]);
+		SourceGenerator generator = new SourceGenerator(seed);
+
+		try (BufferedWriter source = Files.newBufferedWriter(Paths.get(args[first + 2]), StandardCharsets.US_ASCII);
+			BufferedWriter expected = args.length > first + 3 ? Files.newBufferedWriter(Paths.get(args[first + 3]), StandardCharsets.US_ASCII) : null) {
+			if (forward)
+				generator.generateForward(lines, new SourceGenerator(seed).count(lines), source, expected);
+			else
+				generator.generate(lines, source, expected);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+#!/bin/sh
+# Assembles a generated 10M-line source under a small heap on every input path, and checks each output against
+# the image the generator expects. The source is ten times the heap, so a path which holds the program, its
+# output or its lines in memory fails with OutOfMemoryError instead of passing.
+#
+# The second source wraps the same lines in a jump on the first line to a label on the last, so one fixup waits
+# over the whole source; a path which holds the words after it in memory fails the same way. Past 65535 words
+# the label is out of range for a payload, and that one error is expected.
+#
+# Run from "Tim's Assembler":
+#   sh bench/heap-test.sh [lines] [heap]        defaults: 10000000 32m
+set -e
+
+lines=${1:-10000000}
+heap=${2:-32m}
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+
+javac -encoding UTF-8 -d "$work/classes" $(find src bench -name '*.java')
+java -cp "$work/classes" assembler.SourceGenerator "$lines" 42 "$work/big.asm" "$work/big.expected"
+java -cp "$work/classes" assembler.SourceGenerator -f "$lines" 42 "$work/forward.asm" "$work/forward.expected"
+
+for source in big forward; do
+	for mode in "" "-m" "-t 2" "-k $work/cache"; do
+		if ! java -Xmx"$heap" -XX:+ExitOnOutOfMemoryError -cp "$work/classes" assembler.Main $mode \
+			-i "$work/$source.asm" -o "$work/$source.out" > "$work/log"; then
+			if [ $source = big ] || [ "$(grep -cv '^Label address out of range: "xend"$\|^Operation failed with 1 error(s)$' "$work/log")" != 0 ]; then
+				cat "$work/log"
+				exit 1
+			fi
+		fi
+		cmp "$work/$source.out" "$work/$source.expected"
+		echo "ok: $source.asm, $lines lines${mode:+ with $mode} under -Xmx$heap" | sed "s|$work/||"
+		rm "$work/$source.out"
+	done
+	rm -rf "$work/cache"
+done
@@ -1,10 +1,27 @@
 package assembler;
 
+import java.io.PrintStream;
+
 import org.apache.commons.cli.*;
 
 public class AppOptions {
-	String fileInput, fileOutput;
-	boolean isVerbose, isDebug, isReverse;
+	String fileInput, fileOutput, batch, link, cache, graph;
+	boolean isVerbose, isDebug, isReverse, isMapped, isCompileOnly, isRoundTrip;
+	int threads, daemonPort, connectPort, romSize;
+	ImageWriter.Format format = ImageWriter.Format.RAW;
+	boolean isLittleEndian;
+	/**
+	 * False for source which came from another process, such as a daemon request, so it cannot read files
+	 */
+	boolean isIncludeAllowed = true;
+	/**
+	 * Where per-line diagnostics are printed
+	 */
+	PrintStream log = System.out;
+	/**
+	 * Keeps the words the job writes for -R; set by Assembler.run
+	 */
+	RoundTrip roundTrip;
 	
 	public AppOptions(String[] args) {
 		this();
@@ -14,15 +31,41 @@ public class AppOptions {
 		Option verbose = new Option("v", "verbose", false, "be extra verbose" );
 		Option debug = new Option("d", "debug", false, "print debugging information" );
 		Option reverse = new Option("r", "reverse", false, "disassemble input file from machine code into assembly");
+		Option mmap = new Option("m", "mmap", false, "memory-map the input file and scan it as ASCII bytes");
 		Option filein = new Option("i", "filein", true, "use given file for input (default: \"input.txt\" in current directory)");
 		Option fileout = new Option("o", "fileout", true, "use given file for output (default: \"output.bin\" in current directory)");
+		Option threadCount = new Option("t", "threads", true, "number of worker threads (default: 1, or one per core in batch mode)");
+		Option daemon = new Option("D", "daemon", true, "run as a resident assembler daemon listening on the given localhost port");
+		Option connect = new Option("C", "connect", true, "send the job to an assembler daemon on the given localhost port");
+		Option outputFormat = new Option("f", "format", true, "output image format: raw (Logisim \"v2.0 raw\" text, default), bin (packed 32-bit words), ihex (Intel HEX) or srec (Motorola S-records)");
+		Option endian = new Option("e", "endian", true, "byte order of words in bin, ihex and srec output: big (default) or little");
+		Option rom = new Option("s", "rom-size", true, "pad the output image with zero words up to the given number of words, such as 65536 or 0x10000");
+		Option compileOnly = new Option("c", "compile-only", false, "assemble the input file into a relocatable object file instead of an image");
+		Option linkObjects = new Option("l", "link", true, "link a comma-separated list of object files, in order, into the output image");
+		Option cacheDirectory = new Option("k", "cache", true, "keep encoded source in the given cache directory, and only encode what changed since");
+		Option cfg = new Option("g", "cfg", true, "with -r, write the control flow graph of the image to the given Graphviz file and label every basic block in the listing");
+		Option roundTrip = new Option("R", "verify-roundtrip", false, "after assembling, disassemble the image, assemble the listing again and report every word that changed");
+		Option batchJobs = new Option("b", "batch", true, "assemble every job in a manifest file of \"input output\" lines, or every file matching a glob such as \"roms/*.asm\"");
 		
 		options.addOption(help);
 		options.addOption(verbose);
 		options.addOption(debug);
 		options.addOption(reverse);
+		options.addOption(mmap);
 		options.addOption(filein);
 		options.addOption(fileout);
+		options.addOption(threadCount);
+		options.addOption(outputFormat);
+		options.addOption(endian);
+		options.addOption(rom);
+		options.addOption(compileOnly);
+		options.addOption(linkObjects);
+		options.addOption(cacheDirectory);
+		options.addOption(batchJobs);
+		options.addOption(cfg);
+		options.addOption(roundTrip);
+		options.addOption(daemon);
+		options.addOption(connect);
 		
 	    CommandLineParser parser = new DefaultParser();
 	    CommandLine line = null;
@@ -42,6 +85,37 @@ public class AppOptions {
 	    if (line.hasOption(reverse.getOpt())) {
 	    	isReverse= true;
 	    }
+	    if (line.hasOption(mmap.getOpt())) {
+	    	isMapped = true;
+	    }
+	    if (line.hasOption(outputFormat.getOpt())) {
+	    	ImageWriter.Format chosen = ImageWriter.Format.fromName(line.getOptionValue(outputFormat.getOpt()));
+	    	if (chosen != null)
+	    		format = chosen;
+	    	else
+	    		System.err.println( "Parsing failed.  Reason: unknown format " + line.getOptionValue(outputFormat.getOpt()) );
+	    }
+	    if (line.hasOption(endian.getOpt())) {
+	    	String order = line.getOptionValue(endian.getOpt());
+	    	if (order.equalsIgnoreCase("little"))
+	    		isLittleEndian = true;
+	    	else if (!order.equalsIgnoreCase("big"))
+	    		System.err.println( "Parsing failed.  Reason: unknown byte order " + order );
+	    }
+	    if (line.hasOption(rom.getOpt())) {
+	    	try {
+	    		romSize = Math.max(0, Integer.decode(line.getOptionValue(rom.getOpt())));
+	    	}
+	    	catch (NumberFormatException exp) {
+	    		System.err.println( "Parsing failed.  Reason: invalid ROM size " + line.getOptionValue(rom.getOpt()) );
+	    	}
+	    }
+	    if (line.hasOption(roundTrip.getOpt())) {
+	    	isRoundTrip = true;
+	    }
+	    if (line.hasOption(compileOnly.getOpt())) {
+	    	isCompileOnly = true;
+	    }
 	    if (line.hasOption(help.getOpt())) {
 	    	HelpFormatter formatter = new HelpFormatter();
 	    	formatter.printHelp( "Assemble <args> -i <filein> -o <fileout>", options );
@@ -55,6 +129,45 @@ public class AppOptions {
 	    if (line.hasOption(fileout.getOpt())) {
 	    	fileOutput = line.getOptionValue(fileout.getOpt());
 	    }
+	    if (line.hasOption(linkObjects.getOpt())) {
+	    	link = line.getOptionValue(linkObjects.getOpt());
+	    }
+	    if (line.hasOption(cacheDirectory.getOpt())) {
+	    	cache = line.getOptionValue(cacheDirectory.getOpt());
+	    }
+	    if (line.hasOption(cfg.getOpt())) {
+	    	graph = line.getOptionValue(cfg.getOpt());
+	    }
+	    if (line.hasOption(batchJobs.getOpt())) {
+	    	batch = line.getOptionValue(batchJobs.getOpt());
+	    }
+	    if (line.hasOption(daemon.getOpt())) {
+	    	daemonPort = parsePort(line.getOptionValue(daemon.getOpt()));
+	    }
+	    if (line.hasOption(connect.getOpt())) {
+	    	connectPort = parsePort(line.getOptionValue(connect.getOpt()));
+	    }
+	    if (line.hasOption(threadCount.getOpt())) {
+	    	try {
+	    		threads = Math.max(1, Integer.parseInt(line.getOptionValue(threadCount.getOpt())));
+	    	}
+	    	catch (NumberFormatException exp) {
+	    		System.err.println( "Parsing failed.  Reason: invalid thread count " + line.getOptionValue(threadCount.getOpt()) );
+	    	}
+	    }
+	}
+	
+	private static int parsePort(String value) {
+		try {
+			int port = Integer.parseInt(value);
+			if (port > 0 && port < 65536)
+				return port;
+		}
+		catch (NumberFormatException exp) {
+			//Reported below
+		}
+		System.err.println( "Parsing failed.  Reason: invalid port " + value );
+		return 0;
 	}
 	
 	public AppOptions(String fileInput, String fileOutput, boolean isVerbose, boolean isDebug, boolean isReverse) {
@@ -65,6 +178,24 @@ public class AppOptions {
 		this.isReverse = isReverse;
 	}
 	
+	/**Copies these options for a single job of a batch
+	 * @param Input file of the job
+	 * @param Output file of the job
+	 * @return Options for one single-threaded job
+	 */
+	AppOptions forJob(String fileInput, String fileOutput) {
+		AppOptions job = new AppOptions(fileInput, fileOutput, isVerbose, isDebug, isReverse);
+		job.isMapped = isMapped;
+		job.isCompileOnly = isCompileOnly;
+		job.isRoundTrip = isRoundTrip;
+		job.cache = cache;
+		job.format = format;
+		job.isLittleEndian = isLittleEndian;
+		job.romSize = romSize;
+		job.log = log;
+		return job;
+	}
+	
 	public AppOptions() {
 		this(
 				System.getProperty("user.dir").concat("/input.txt"), 
@@ -0,0 +1,49 @@
+package assembler;
+
+import java.nio.ByteBuffer;
+
+/**Character view of a byte buffer holding ASCII text
+ *
+ * Each byte is widened straight to a char, so no charset decoding or copying happens.
+ * Lets the Lexer scan memory-mapped input without making a String per line.
+ */
+public class AsciiBuffer implements CharSequence {
+	private final ByteBuffer bytes;
+
+	/**
+	 * @param Buffer holding ASCII text; characters are indexed by absolute buffer position
+	 */
+	public AsciiBuffer(ByteBuffer bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * @return Underlying byte buffer
+	 */
+	public ByteBuffer bytes() { return bytes; }
+
+	@Override
+	public int length() {
+		return bytes.limit();
+	}
+
+	@Override
+	public char charAt(int index) {
+		return (char) (bytes.get(index) & 0xFF);
+	}
+
+	/**Copies a range out as a String; only meant for diagnostics
+	 */
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		char[] chars = new char[end - start];
+		for (int i = start; i < end; i++)
+			chars[i - start] = charAt(i);
+		return new String(chars);
+	}
+
+	@Override
+	public String toString() {
+		return subSequence(0, length()).toString();
+	}
+}
@@ -0,0 +1,323 @@
+package assembler;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**One assembly or disassembly job, from the input file named in its options to the output file
+ *
+ * Holds no static state, so several jobs may run at once in the same process. Assembly reads the source once:
+ * payloads naming labels defined further down are patched in the program image when the label turns up (see
+ * Labels), and only the words before the first one still waiting are written out, unless so many wait that the
+ * writer holds them where they were written instead (see drain).
+ */
+public class Assembler {
+	/**
+	 * Number of encoded words held in the program image before they are written out
+	 */
+	static final int FLUSH_WORDS = 16 * 1024;
+
+	/**
+	 * Most words a label referenced before its definition holds back in the program image
+	 */
+	static final int HOLD_WORDS = FLUSH_WORDS;
+
+	private final AppOptions options;
+	private int errors;
+
+	/**
+	 * @param Application options naming the input and output files
+	 */
+	public Assembler(AppOptions options) {
+		this.options = options;
+	}
+
+	/**Runs the job, picking the input path from the options
+	 * @return Number of lines that could not be assembled
+	 */
+	public int run() throws IOException {
+		RoundTrip roundTrip = options.isRoundTrip && !options.isReverse && !options.isCompileOnly ? new RoundTrip() : null;
+		options.roundTrip = roundTrip;
+
+		if (options.isReverse && options.threads > 1 && options.graph == null)
+			errors += ParallelDisassembler.disassemble(options);
+		else if (options.isReverse)
+			disassembleMapped();
+		else if (options.link != null)
+			errors += ObjectFile.link(options);
+		else if (options.isCompileOnly)
+			errors += ObjectFile.compile(options);
+		else if (options.cache != null)
+			errors += AssemblyCache.assemble(options);
+		else if (options.threads > 1)
+			errors += ParallelAssembler.assemble(options);
+		else if (options.isMapped)
+			assembleMapped();
+		else
+			assembleReader();
+
+		if (roundTrip != null)
+			errors += roundTrip.verify(options);
+		return errors;
+	}
+
+	/**Runs the job on source held in memory instead of the files named in the options
+	 * @param ASCII source text, or machine code when disassembling
+	 * @param Channel the output image is written to; closed when done
+	 * @return Number of lines that could not be assembled
+	 */
+	public int run(byte[] source, WritableByteChannel output) throws IOException {
+		AsciiBuffer buffer = new AsciiBuffer(ByteBuffer.wrap(source));
+
+		if (options.isReverse) {
+			JumpTargets targets = new JumpTargets();
+			Disassembler scan = new Disassembler(targets);
+			disassemble(buffer.bytes(), scan, null, options);
+			targets.limit(scan.address());
+			try (Disassembler out = new Disassembler(output, targets, 0)) {
+				errors += disassemble(buffer.bytes(), out, options.log, options);
+			}
+		}
+		else {
+			try (ImageWriter out = ImageWriter.open(output, options)) {
+				ProgramImage image = new ProgramImage(source.length / 8);
+				Labels labels = new Labels(options);
+				Macros macros = new Macros();
+				errors += encodeLines(buffer, 0, source.length, image, labels, macros, options);
+				errors += macros.finish(options);
+				errors += labels.finish();
+				drain(image, out, labels, 0);
+				errors += pad(image, out, options);
+			}
+		}
+		return errors;
+	}
+
+	/**Encodes every line in a range of source text
+	 * @param Buffer holding the source
+	 * @param Offset of the first character of the range
+	 * @param Offset one past the last character of the range
+	 * @param Program image the encoded words are appended to, in source order
+	 * @param Labels of the program
+	 * @param Macros of the program
+	 * @param Application options
+	 * @return Number of lines that could not be assembled
+	 */
+	static int encodeLines(CharSequence buffer, int start, int end, ProgramImage image, Labels labels, Macros macros, AppOptions options) {
+		Lexer tokens = new Lexer();
+		int errors = 0;
+
+		int lineStart = start;
+		for (int i = start; i <= end; i++) {
+			if (i == end || buffer.charAt(i) == '\n') {
+				//Skip the empty range after a final newline
+				if (i < end || i > lineStart) {
+					tokens.lex(buffer, lineStart, i);
+					if (!assembleLine(tokens, image, labels, macros, options))
+						errors++;
+				}
+				lineStart = i + 1;
+			}
+		}
+		return errors;
+	}
+
+	/**Assembles one lexed line: a directive, a macro definition line, a macro invocation or an instruction
+	 * @param Tokens of one line of assembly input
+	 * @param Program image the encoded words are appended to
+	 * @param Labels of the program
+	 * @param Macros of the program, or null to allow none
+	 * @param Application options
+	 * @return False if the line could not be assembled
+	 */
+	static boolean assembleLine(Lexer tokens, ProgramImage image, Labels labels, Macros macros, AppOptions options) {
+		if (macros != null && macros.recording())
+			return macros.record(tokens, options);
+		if (tokens.count() > 0 && tokens.charAt(0, 0) == '.')
+			return Directive.interpret(tokens, image, labels, macros, options);
+
+		OpCodes opcode = OpCodes.determineCode(tokens);
+		if (opcode == null && macros != null) {
+			Macros.Macro macro = macros.find(tokens);
+			if (macro != null)
+				return macros.expand(macro, tokens, image, labels, options);
+		}
+		return OpCodes.interpretForward(tokens, image, labels, opcode, options);
+	}
+
+	/**Assembles the input file one String line at a time through a BufferedReader
+	 */
+	void assembleReader() throws IOException {
+		String line;
+		long lineNumber = 0;
+		Lexer tokens = new Lexer();
+		ProgramImage image = new ProgramImage(FLUSH_WORDS);
+		Labels labels = new Labels(options);
+		Macros macros = new Macros();
+
+		try (FileReader fileReader = new FileReader(options.fileInput);
+			BufferedReader bufferedReader = new BufferedReader(fileReader);
+			ImageWriter out = ImageWriter.open(options)){
+			while((line = bufferedReader.readLine()) != null) {
+				tokens.lex(line);
+				int address = image.address();
+				if (!assembleLine(tokens, image, labels, macros, options))
+					errors++;
+				if (options.roundTrip != null)
+					options.roundTrip.line(address, image.address(), ++lineNumber);
+				drain(image, out, labels, FLUSH_WORDS);
+			}
+			errors += macros.finish(options);
+			errors += labels.finish();
+			drain(image, out, labels, 0);
+			errors += pad(image, out, options);
+		}
+	}
+
+	/**Assembles the input file by memory-mapping it and lexing each line straight from the mapped bytes
+	 */
+	void assembleMapped() throws IOException {
+		Lexer tokens = new Lexer();
+		ProgramImage image = new ProgramImage(FLUSH_WORDS);
+		Labels labels = new Labels(options);
+		Macros macros = new Macros();
+
+		try (MappedSource source = new MappedSource(options.fileInput);
+			ImageWriter out = ImageWriter.open(options)){
+			while (source.nextLine()) {
+				tokens.lex(source.buffer(), source.lineStart(), source.lineEnd());
+				int address = image.address();
+				if (!assembleLine(tokens, image, labels, macros, options))
+					errors++;
+				if (options.roundTrip != null)
+					options.roundTrip.line(address, image.address(), source.lineNumber());
+				drain(image, out, labels, FLUSH_WORDS);
+			}
+			errors += macros.finish(options);
+			errors += labels.finish();
+			drain(image, out, labels, 0);
+			errors += pad(image, out, options);
+		}
+	}
+
+	/**Disassembles the input file by memory-mapping it and decoding words straight from the mapped bytes
+	 *
+	 * The input is a "v2.0 raw" image, read one line at a time through MappedSource, or with --format bin an
+	 * image of packed words in the --endian byte order, mapped one window at a time. It is read twice: first
+	 * to find the jump targets to label, or with --cfg the basic blocks, then to write the listing.
+	 */
+	void disassembleMapped() throws IOException {
+		ControlFlowGraph graph = options.graph != null ? new ControlFlowGraph() : null;
+		JumpTargets targets = graph != null ? graph : new JumpTargets();
+		Disassembler scan = new Disassembler(targets);
+		disassembleMapped(scan, null);
+		targets.limit(scan.address());
+		if (graph != null)
+			writeGraph(graph);
+
+		try (Disassembler out = new Disassembler(FileChannel.open(Paths.get(options.fileOutput),
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING), targets, 0)) {
+			errors += disassembleMapped(out, options.log);
+		}
+	}
+
+	/**Finds the basic blocks of a scanned image and writes its control flow graph to the file named by --cfg
+	 */
+	private void writeGraph(ControlFlowGraph graph) throws IOException {
+		if (!graph.build())
+			options.log.println("Image longer than " + ControlFlowGraph.MAX_WORDS + " words; the control flow graph covers only the words a jump can address");
+		graph.write(Paths.get(options.graph));
+		if (options.isVerbose) options.log.println("Found " + graph.blocks() + " basic block(s), " + graph.unreachable() + " unreachable from address 0");
+	}
+
+	private int disassembleMapped(Disassembler out, PrintStream log) throws IOException {
+		int errors = 0;
+		if (options.format != ImageWriter.Format.BIN) {
+			try (MappedSource source = new MappedSource(options.fileInput)) {
+				while (source.nextLine())
+					errors += out.lines(source.buffer(), source.lineStart(), source.lineEnd(), log);
+			}
+			return errors;
+		}
+
+		try (FileChannel channel = FileChannel.open(Paths.get(options.fileInput), StandardOpenOption.READ)) {
+			//Windows are a whole number of words, so no word straddles two of them
+			long size = channel.size(), window = MappedSource.WINDOW_SIZE;
+			for (long offset = 0; offset < size; offset += window)
+				errors += disassemble(channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(window, size - offset)), out, log, options);
+		}
+		return errors;
+	}
+
+	/**Disassembles a whole image held in a buffer, in the format named by the options
+	 * @param Buffer holding the image from index 0 to its limit
+	 * @param Disassembler the words are fed to
+	 * @param Where to report input which is not part of an image, or null to leave it unreported
+	 * @param Application options naming the format and byte order
+	 * @return Number of lines or partial words which are not part of an image
+	 */
+	static int disassemble(ByteBuffer image, Disassembler out, PrintStream log, AppOptions options) throws IOException {
+		if (options.format != ImageWriter.Format.BIN)
+			return out.lines(new AsciiBuffer(image), 0, image.limit(), log);
+		image.order(options.isLittleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		return out.words(image, 0, image.limit(), log);
+	}
+
+	/**Writes out the encoded words held in the image once enough of them are final
+	 *
+	 * Words from the first one still waiting on a label are held back. So that moving the held words down stays
+	 * cheap, at least as many words are written as are kept. A label referenced long before it is defined would
+	 * hold back everything after it, so once more than HOLD_WORDS words are held the writer is asked to hold them
+	 * instead (see ImageWriter.hold): from then on every word is written out, and patched there, until no label
+	 * waits on a word written.
+	 * @param Program image being filled by the encoder
+	 * @param Output file writer
+	 * @param Labels of the program
+	 * @param Number of final words to hold before writing; 0 writes whatever is final
+	 */
+	static void drain(ProgramImage image, ImageWriter out, Labels labels, int threshold) throws IOException {
+		int pending = labels.firstPending();
+		if (image.isHeld()) {
+			image.writePatches(out);
+			if (pending >= image.base()) {
+				out.release();
+				image.hold(false);
+			}
+		}
+
+		int ready = image.indexOf(pending);
+		if (!image.isHeld() && image.size() - ready > HOLD_WORDS && out.hold())
+			image.hold(true);
+		if (image.isHeld())
+			ready = image.size();
+		if (ready > 0 && ready >= threshold && ready >= image.size() - ready) {
+			image.writeTo(out, ready);
+			image.discard(ready);
+		}
+	}
+
+	/**Pads the output with zero words up to the ROM size in the options, once every word has been written
+	 * @param Program image, fully drained
+	 * @param Output file writer
+	 * @param Application options; a ROM size of 0 pads nothing
+	 * @return Number of errors: 1 if the program runs past the end of the ROM, else 0
+	 */
+	static int pad(ProgramImage image, ImageWriter out, AppOptions options) throws IOException {
+		if (options.romSize == 0)
+			return 0;
+		//base() is where the last word written ends; an .org with no words after it places nothing
+		if (image.base() > options.romSize) {
+			options.log.println("Program ends at address " + String.format("%04X", image.base()) + ", past a ROM of " + options.romSize + " words");
+			return 1;
+		}
+		out.fill(options.romSize - image.base());
+		return 0;
+	}
+}
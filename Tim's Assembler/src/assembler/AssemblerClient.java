@@ -0,0 +1,94 @@
+package assembler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+
+/**Thin client handing one job to an AssemblerDaemon
+ *
+ * Sends the input file to the daemon and writes back its output and diagnostics, so an ordinary
+ * "-i <filein> -o <fileout>" command line behaves the same with or without -C. The output format, byte order
+ * and ROM size travel in the request header, with the token the daemon keeps in its token file; options the
+ * daemon cannot honour for source held in memory are refused rather than ignored.
+ */
+public class AssemblerClient {
+	/**Runs the job named in the options on the daemon
+	 * @param Application options naming the input and output files and the daemon port
+	 * @return Number of failed requests; 0 if every line assembled
+	 */
+	public static int run(AppOptions options) throws IOException {
+		String unsupported = unsupported(options);
+		if (unsupported != null) {
+			options.log.println("Option " + unsupported + " cannot be used with a daemon (-C)");
+			return 1;
+		}
+
+		String token;
+		try {
+			token = AssemblerDaemon.readToken(options.connectPort);
+		}
+		catch (NoSuchFileException ex) {
+			options.log.println("No daemon token in '" + ex.getFile() + "'; is a daemon running on port " + options.connectPort + "?");
+			return 1;
+		}
+
+		byte[] source = Files.readAllBytes(Paths.get(options.fileInput));
+		String request = (options.isReverse ? "DISASSEMBLE " : "ASSEMBLE ") + source.length + " token=" + token
+				+ (options.isVerbose ? " verbose" : "") + (options.isDebug ? " debug" : "")
+				+ (options.format != ImageWriter.Format.RAW ? " format=" + options.format.name().toLowerCase() : "")
+				+ (options.isLittleEndian ? " endian=little" : "")
+				+ (options.romSize > 0 ? " rom-size=" + options.romSize : "") + "\n";
+
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), options.connectPort)) {
+			socket.setTcpNoDelay(true);
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			out.write(request.getBytes(StandardCharsets.US_ASCII));
+			out.write(source);
+			out.flush();
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			String header = AssemblerDaemon.readHeader(in);
+			if (header == null)
+				throw new IOException("Daemon closed the connection without a response");
+			String[] words = header.split(" ");
+			byte[] image = new byte[Integer.parseInt(words[1])];
+			byte[] diagnostics = new byte[Integer.parseInt(words[2])];
+			in.readFully(image);
+			in.readFully(diagnostics);
+
+			Files.write(Paths.get(options.fileOutput), image);
+			options.log.write(diagnostics);
+			options.log.flush();
+			return words[0].equals("OK") ? 0 : 1;
+		}
+	}
+
+	/**
+	 * @return First option set which the daemon does not support, or null if there is none
+	 */
+	static String unsupported(AppOptions options) {
+		if (options.isCompileOnly)
+			return "-c";
+		if (options.link != null)
+			return "-l";
+		if (options.cache != null)
+			return "-k";
+		if (options.isRoundTrip)
+			return "-R";
+		if (options.graph != null)
+			return "-g";
+		if (options.isMapped)
+			return "-m";
+		if (options.threads > 1)
+			return "-t";
+		return null;
+	}
+}
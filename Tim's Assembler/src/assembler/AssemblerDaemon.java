@@ -0,0 +1,282 @@
+package assembler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**Resident assembler listening on a localhost TCP port
+ *
+ * Keeps one JVM, with a warmed-up encoder, serving any number of jobs. Each connection may carry several
+ * requests, one after the other. All headers are single ASCII lines:
+ *
+ * Request:  "ASSEMBLE <length> token=<token> [verbose] [debug] [format=<raw|bin|ihex|srec>] [endian=<big|little>]
+ *           [rom-size=<words>]" or "DISASSEMBLE <length> ...", followed by <length> bytes of input
+ *           "SHUTDOWN token=<token>" stops the daemon
+ * Response: "OK <outputLength> <diagnosticsLength>", or "ERROR ..." if any line failed or the request was malformed,
+ *           followed by the output, in the format asked for, and then the diagnostics text
+ *
+ * Any local process can reach a loopback port, so every request must carry the token the daemon wrote to its
+ * token file, which only the user running it can read (see tokenFile). Source arriving over the socket may
+ * not use .include, so a request cannot read files of the daemon's user. Jobs run on a fixed number of
+ * threads, idle connections are closed after IDLE_TIMEOUT, and inputs are limited to MAX_REQUEST bytes.
+ *
+ * EX: "ASSEMBLE 11 token=<token>\nLDI 3 1234\n" > "OK 18 0\nv2.0 raw\nC3001234\n"
+ */
+public class AssemblerDaemon {
+	/**
+	 * Largest input accepted in one request
+	 */
+	static final int MAX_REQUEST = 1 << 26;
+
+	/**
+	 * Most connections served at once; further connections wait for one to close
+	 */
+	static final int MAX_CONNECTIONS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Milliseconds a connection may wait between requests before it is closed, freeing its thread
+	 */
+	static final int IDLE_TIMEOUT = 60000;
+
+	private static final byte[] NOTHING = new byte[0];
+
+	private static final String WARM_UP_SOURCE =
+			"LDI 3 1234\nJMP 1234\nJMZ D,9 10F0\nJNG 1,2 0004\nADD D,3 2\nADD F,3 2 1010\nSUB 1,2 3\nMUL 1,2 3\n"
+			+ "DIV 1,2 3\nWTR A B\nWTR F B 0110\nINP A\nWOP A,B\nRES\nLDR D A\nLDR F A 0110\n; comment\n";
+
+	/**Runs the daemon until a SHUTDOWN request arrives
+	 * @param Application options holding the port to listen on
+	 */
+	public static void serve(AppOptions options) throws IOException {
+		warmUp();
+		ExecutorService pool = Executors.newFixedThreadPool(MAX_CONNECTIONS);
+		Path tokenFile = tokenFile(options.daemonPort);
+
+		try (ServerSocket server = new ServerSocket(options.daemonPort, 50, InetAddress.getLoopbackAddress())) {
+			byte[] token = writeToken(tokenFile);
+			System.out.println("Assembler daemon listening on " + server.getLocalSocketAddress() + ", token in " + tokenFile);
+			while (true) {
+				Socket socket;
+				try {
+					socket = server.accept();
+				}
+				catch (SocketException ex) {
+					if (server.isClosed())
+						break;
+					throw ex;
+				}
+				pool.execute(() -> handle(socket, server, token));
+			}
+		}
+		finally {
+			pool.shutdown();
+			Files.deleteIfExists(tokenFile);
+		}
+		System.out.println("Assembler daemon stopped");
+	}
+
+	/**Runs the encoder over a small program until the JIT has compiled it
+	 */
+	private static void warmUp() {
+		AppOptions options = new AppOptions(null, null, false, false, false);
+		AsciiBuffer source = new AsciiBuffer(ByteBuffer.wrap(WARM_UP_SOURCE.getBytes(StandardCharsets.US_ASCII)));
+		ProgramImage image = new ProgramImage();
+		for (int i = 0; i < 20000; i++) {
+			image.clear();
+			Assembler.encodeLines(source, 0, source.length(), image, null, null, options);
+		}
+	}
+
+	/**
+	 * @return File holding the token of the daemon on the given port, in the user's home directory
+	 */
+	static Path tokenFile(int port) {
+		return Paths.get(System.getProperty("user.home"), ".logitim-daemon-" + port);
+	}
+
+	/**Creates a new random token in a file only the current user may read or write
+	 * @param Token file, replaced if a daemon which stopped without deleting it left one behind
+	 * @return Token, as the ASCII hex digits written to the file
+	 */
+	private static byte[] writeToken(Path file) throws IOException {
+		byte[] random = new byte[16];
+		new SecureRandom().nextBytes(random);
+		StringBuilder token = new StringBuilder(32);
+		for (byte b : random)
+			token.append(String.format("%02x", b));
+
+		Files.deleteIfExists(file);
+		try {
+			Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		}
+		catch (UnsupportedOperationException ex) {
+			//Not a POSIX file system; the home directory is already private to the user
+			Files.createFile(file);
+		}
+		catch (FileAlreadyExistsException ex) {
+			throw new IOException("Token file '" + file + "' was created by another process");
+		}
+		byte[] bytes = token.toString().getBytes(StandardCharsets.US_ASCII);
+		Files.write(file, bytes);
+		return bytes;
+	}
+
+	/**Reads the token of the daemon on the given port, for a client
+	 * @return Token as written by the daemon
+	 */
+	static String readToken(int port) throws IOException {
+		return new String(Files.readAllBytes(tokenFile(port)), StandardCharsets.US_ASCII).trim();
+	}
+
+	/**
+	 * @return True if the header words hold a "token=" option equal to the daemon's token
+	 */
+	static boolean hasToken(String[] words, byte[] token) {
+		for (int i = 1; i < words.length; i++) {
+			if (words[i].startsWith("token="))
+				return MessageDigest.isEqual(words[i].substring(6).getBytes(StandardCharsets.US_ASCII), token);
+		}
+		return false;
+	}
+
+	private static void handle(Socket socket, ServerSocket server, byte[] token) {
+		try (Socket connection = socket;
+			DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+			OutputStream out = new BufferedOutputStream(connection.getOutputStream())) {
+			connection.setTcpNoDelay(true);
+			connection.setSoTimeout(IDLE_TIMEOUT);
+
+			String header;
+			while ((header = readHeader(in)) != null) {
+				String[] words = header.trim().split(" +");
+				if (!hasToken(words, token)) {
+					respond(out, "ERROR", NOTHING, "Missing or wrong token\n".getBytes(StandardCharsets.US_ASCII));
+					return;
+				}
+				if (words[0].equals("SHUTDOWN")) {
+					respond(out, "OK", NOTHING, NOTHING);
+					server.close();
+					return;
+				}
+				if (!(words[0].equals("ASSEMBLE") || words[0].equals("DISASSEMBLE")) || words.length < 2) {
+					respond(out, "ERROR", NOTHING, ("Unknown request: " + header + "\n").getBytes(StandardCharsets.US_ASCII));
+					return;
+				}
+
+				int length;
+				try {
+					length = Integer.parseInt(words[1]);
+				}
+				catch (NumberFormatException ex) {
+					length = -1;
+				}
+				if (length < 0 || length > MAX_REQUEST) {
+					respond(out, "ERROR", NOTHING, ("Invalid request length: " + words[1] + "\n").getBytes(StandardCharsets.US_ASCII));
+					return;
+				}
+				byte[] source = new byte[length];
+				in.readFully(source);
+
+				AppOptions job = new AppOptions(null, null, false, false, words[0].equals("DISASSEMBLE"));
+				job.isIncludeAllowed = false;
+				String invalid = parseOptions(words, job);
+				if (invalid != null) {
+					respond(out, "ERROR", NOTHING, ("Invalid request option: " + invalid + "\n").getBytes(StandardCharsets.US_ASCII));
+					return;
+				}
+				ByteArrayOutputStream image = new ByteArrayOutputStream(source.length + 16);
+				ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+				job.log = new PrintStream(diagnostics, true, "US-ASCII");
+
+				int errors = new Assembler(job).run(source, Channels.newChannel(image));
+				respond(out, errors == 0 ? "OK" : "ERROR", image.toByteArray(), diagnostics.toByteArray());
+			}
+		}
+		catch (IOException ex) {
+			System.out.println("Daemon connection failed: " + ex.getMessage());
+		}
+	}
+
+	/**Applies the options following the length in a request header
+	 * @param Words of the header
+	 * @param Options of the job
+	 * @return First word which is not a valid option, or null if all are
+	 */
+	static String parseOptions(String[] words, AppOptions job) {
+		for (int i = 2; i < words.length; i++) {
+			String word = words[i];
+			int equals = word.indexOf('=');
+			String name = equals < 0 ? word : word.substring(0, equals), value = equals < 0 ? null : word.substring(equals + 1);
+			if (name.equals("token") && value != null)
+				continue;
+			else if (name.equals("verbose") && value == null)
+				job.isVerbose = true;
+			else if (name.equals("debug") && value == null)
+				job.isDebug = true;
+			else if (name.equals("format") && value != null && ImageWriter.Format.fromName(value) != null)
+				job.format = ImageWriter.Format.fromName(value);
+			else if (name.equals("endian") && value != null && (value.equals("little") || value.equals("big")))
+				job.isLittleEndian = value.equals("little");
+			else if (name.equals("rom-size") && value != null) {
+				try {
+					job.romSize = Math.max(0, Integer.decode(value));
+				}
+				catch (NumberFormatException ex) {
+					return word;
+				}
+			}
+			else
+				return word;
+		}
+		return null;
+	}
+
+	private static void respond(OutputStream out, String status, byte[] image, byte[] diagnostics) throws IOException {
+		out.write((status + " " + image.length + " " + diagnostics.length + "\n").getBytes(StandardCharsets.US_ASCII));
+		out.write(image);
+		out.write(diagnostics);
+		out.flush();
+	}
+
+	/**Reads one protocol header line
+	 * @param Stream positioned at the start of a header
+	 * @return Header without its newline, or null at end of stream
+	 */
+	static String readHeader(InputStream in) throws IOException {
+		StringBuilder header = new StringBuilder();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				if (header.length() == 0)
+					return null;
+				throw new EOFException("Connection closed inside a header");
+			}
+			if (header.length() > 256)
+				throw new IOException("Header too long");
+			header.append((char) b);
+		}
+		return header.toString();
+	}
+}
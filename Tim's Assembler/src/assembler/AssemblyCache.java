@@ -0,0 +1,350 @@
+package assembler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**Persistent, content-addressed cache of encoded source, for assembling the same sources again and again
+ *
+ * A whole source whose bytes were assembled before is answered with a copy of the image it gave. Otherwise the
+ * source is cut into regions at line boundaries, and each region is looked up by the hash of its bytes: known
+ * regions are memory-mapped from the cache and spliced in, and only new regions are lexed and encoded. Regions
+ * are encoded on their own with deferred labels (see Labels), so they fit anywhere, and their labels are linked
+ * as they are appended, the same way as chunks of a parallel job.
+ *
+ * Regions are cut where the content says, not at fixed offsets, so that an edit only changes the regions it
+ * touches: once a region holds MIN_REGION bytes, it ends before the next line that defines a label or whose
+ * hash has its low six bits clear, and at MAX_REGION bytes it ends at the next line.
+ *
+ * A source holding directives depends on other files and on macro definitions, so it is assembled as one
+ * region, and neither the region nor the image is looked up or cached. Regions or images with errors are not cached either, so their diagnostics
+ * are printed again on every run.
+ *
+ * Layout of the cache directory; hashes are the first 128 bits of SHA-256 in hex, taken over a kind byte,
+ * the object format version, the output format and ROM size for images, and the content:
+ *   ab/cdef...0123.obj     one region, as an object file (see ObjectFile)
+ *   ab/cdef...0123.image   the output image of one whole source, in the format it was asked for
+ * Entries are written to a temporary file and renamed into place, so concurrent jobs may share a directory.
+ *
+ * Eviction is least recently used, bounded by size: every hit touches the entry's modification time, and after
+ * a job that added entries the oldest ones are deleted until the cache is back under 3/4 of MAX_BYTES.
+ */
+public class AssemblyCache {
+	static final int MIN_REGION = 16 * 1024, MAX_REGION = 64 * 1024;
+
+	/**
+	 * Size the cache directory is kept under
+	 */
+	static final long MAX_BYTES = 256L << 20;
+
+	private static final byte REGION = 'R', IMAGE = 'I';
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final AppOptions options;
+	private final Path directory;
+	private final MessageDigest digest;
+	private boolean added;
+
+	/**
+	 * @param Application options naming the cache directory, input and output files
+	 */
+	AssemblyCache(AppOptions options) throws IOException {
+		this.options = options;
+		this.directory = Paths.get(options.cache);
+		try {
+			this.digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	/**Assembles the input file into the output file, reusing whatever the cache already holds
+	 * @param Application options naming the cache directory, input and output files
+	 * @return Number of lines that could not be assembled
+	 */
+	public static int assemble(AppOptions options) throws IOException {
+		return new AssemblyCache(options).run();
+	}
+
+	private int run() throws IOException {
+		Path input = Paths.get(options.fileInput), output = Paths.get(options.fileOutput);
+		int errors;
+		try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Input file too large to cache");
+			MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			//A source with directives depends on other files, so not even its whole image may be reused
+			AsciiBuffer source = new AsciiBuffer(bytes);
+			boolean cacheable = !hasDirectives(source);
+			int format = options.format.ordinal() * 2 + (options.isLittleEndian ? 1 : 0);
+			Path image = cacheable ? entry(hash(IMAGE, format, options.romSize, bytes, 0, bytes.limit()), ".image") : null;
+			//A round trip check needs the words, so the image is assembled from regions instead of copied
+			if (image != null && options.roundTrip == null && Files.isRegularFile(image)) {
+				try {
+					Files.copy(image, output, StandardCopyOption.REPLACE_EXISTING);
+					touch(image);
+					if (options.isVerbose) options.log.println("Reused cached image of '" + input + "'");
+					return 0;
+				}
+				catch (NoSuchFileException ex) {
+					//Evicted by another job in between, so assemble it after all
+				}
+			}
+
+			errors = assemble(source, cacheable);
+			if (errors == 0 && image != null)
+				store(image, temp -> Files.copy(output, temp, StandardCopyOption.REPLACE_EXISTING));
+		}
+		if (added)
+			evict();
+		return errors;
+	}
+
+	/**Splices cached regions and newly encoded ones into the output image
+	 * @param Source text
+	 * @param False to assemble the source as one region, without looking it up or storing it
+	 */
+	private int assemble(AsciiBuffer source, boolean cacheable) throws IOException {
+		ProgramImage image = new ProgramImage(Assembler.FLUSH_WORDS);
+		Labels labels = new Labels(options);
+		int errors = 0, regions = 0, reused = 0;
+
+		try (ImageWriter out = ImageWriter.open(options)) {
+			List<Integer> cuts = cut(source, cacheable);
+			for (int i = 0; i + 1 < cuts.size(); i++) {
+				int start = cuts.get(i), end = cuts.get(i + 1);
+				ObjectFile region = null;
+				Path entry = null;
+				if (cacheable) {
+					entry = entry(hash(REGION, 0, 0, source.bytes(), start, end), ".obj");
+					region = load(entry);
+				}
+
+				if (region != null)
+					reused++;
+				else {
+					region = new ObjectFile(new ProgramImage((end - start) / 8), new Labels(options, true));
+					Macros macros = entry == null ? new Macros() : null;
+					int regionErrors = Assembler.encodeLines(source, start, end, region.image, region.labels, macros, options);
+					if (macros != null)
+						regionErrors += macros.finish(options);
+					if (regionErrors == 0 && entry != null) {
+						ObjectFile stored = region;
+						store(entry, stored::write);
+					}
+					errors += regionErrors;
+				}
+				regions++;
+
+				labels.link(region.image, region.labels, image);
+				Assembler.drain(image, out, labels, Assembler.FLUSH_WORDS);
+			}
+			errors += labels.finish();
+			Assembler.drain(image, out, labels, 0);
+			errors += Assembler.pad(image, out, options);
+		}
+		if (options.isVerbose) options.log.println("Reused " + reused + " of " + regions + " cached region(s)");
+		return errors;
+	}
+
+	/**Chooses where regions start, from the content of the source
+	 * @param Source text
+	 * @param False to keep the whole source as one region
+	 * @return Offsets of the region boundaries, starting with 0 and ending with the source length
+	 */
+	private static List<Integer> cut(AsciiBuffer source, boolean split) {
+		List<Integer> cuts = new ArrayList<>();
+		cuts.add(0);
+		int length = source.length();
+		//No region ends before MIN_REGION bytes, so only the newlines after that are looked at
+		for (int i = MIN_REGION - 1, regionStart = 0; split && i < length - 1; i++) {
+			if (source.charAt(i) != '\n')
+				continue;
+			int lineEnd = i + 1;
+			while (lineEnd < length && source.charAt(lineEnd) != '\n')
+				lineEnd++;
+			if (i + 1 - regionStart >= MAX_REGION || startsRegion(source, i + 1, lineEnd)) {
+				regionStart = i + 1;
+				cuts.add(regionStart);
+				i = regionStart + MIN_REGION - 2;
+			}
+		}
+		cuts.add(length);
+		return cuts;
+	}
+
+	/**
+	 * @return True if a region should start at this line: it defines a label, or its hash picks it
+	 */
+	private static boolean startsRegion(AsciiBuffer source, int start, int end) {
+		int i = start;
+		while (i < end && isBlank(source.charAt(i)))
+			i++;
+		while (i < end && !isBlank(source.charAt(i)))
+			i++;
+		if (i > start && source.charAt(i - 1) == ':')
+			return true;
+
+		int h = 0x811C9DC5;
+		for (i = start; i < end; i++)
+			h = (h ^ source.charAt(i)) * 0x01000193;
+		return ((h ^ (h >>> 16)) & 0x3F) == 0;
+	}
+
+	/**
+	 * @return True if any line's first token, or the token after a leading label, starts with '.'
+	 */
+	private static boolean hasDirectives(AsciiBuffer source) {
+		boolean tokenStart = true, labelled = false;
+		for (int i = 0; i < source.length(); i++) {
+			char c = source.charAt(i);
+			if (c == '\n') {
+				tokenStart = true;
+				labelled = false;
+			}
+			else if (tokenStart && !isBlank(c)) {
+				if (c == '.')
+					return true;
+				//Skip to the end of the token; one ending in ':' is a label, and the token after it counts too
+				while (i + 1 < source.length() && !isBlank(source.charAt(i + 1)) && source.charAt(i + 1) != '\n')
+					i++;
+				tokenStart = !labelled && source.charAt(i) == ':';
+				labelled = true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isBlank(char c) {
+		return c == ' ' || c == '\t' || c == '\r';
+	}
+
+	private String hash(byte kind, int format, int romSize, ByteBuffer bytes, int start, int end) {
+		digest.reset();
+		digest.update(kind);
+		digest.update((byte) ObjectFile.VERSION);
+		digest.update((byte) format);
+		for (int shift = 24; shift >= 0; shift -= 8)
+			digest.update((byte) (romSize >>> shift));
+		ByteBuffer range = bytes.duplicate();
+		range.limit(end).position(start);
+		digest.update(range);
+		byte[] hash = digest.digest();
+
+		char[] hex = new char[32];
+		for (int i = 0; i < 16; i++) {
+			hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+			hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+	private Path entry(String hash, String extension) {
+		return directory.resolve(hash.substring(0, 2)).resolve(hash.substring(2) + extension);
+	}
+
+	/**Memory-maps a cached region
+	 *
+	 * An entry which cannot be read, such as one truncated by a full disk or written by another version, is
+	 * deleted and treated as a miss, so the region is encoded and stored again.
+	 * @return The region, or null if it is not cached
+	 */
+	private ObjectFile load(Path entry) throws IOException {
+		try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ)) {
+			ObjectFile region = ObjectFile.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), entry, options);
+			touch(entry);
+			return region;
+		}
+		catch (NoSuchFileException ex) {
+			return null;
+		}
+		catch (IOException | RuntimeException ex) {
+			if (options.isVerbose) options.log.println("Discarded unreadable cache entry '" + entry + "': " + ex.getMessage());
+			Files.deleteIfExists(entry);
+			return null;
+		}
+	}
+
+	private interface Writer {
+		void write(Path file) throws IOException;
+	}
+
+	/**Writes an entry under a temporary name and renames it into place
+	 */
+	private void store(Path entry, Writer writer) throws IOException {
+		Files.createDirectories(entry.getParent());
+		Path temp = Files.createTempFile(entry.getParent(), "entry", ".part");
+		try {
+			writer.write(temp);
+			Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			added = true;
+		}
+		finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private static void touch(Path entry) {
+		try {
+			Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+		}
+		catch (IOException ex) {
+			//Only makes the entry look older to eviction
+		}
+	}
+
+	/**Deletes the least recently used entries once the cache holds more than MAX_BYTES
+	 */
+	private void evict() throws IOException {
+		List<Path> entries = new ArrayList<>();
+		List<BasicFileAttributes> attributes = new ArrayList<>();
+		long total = 0;
+		try (DirectoryStream<Path> subdirectories = Files.newDirectoryStream(directory)) {
+			for (Path subdirectory : subdirectories) {
+				if (!Files.isDirectory(subdirectory))
+					continue;
+				try (DirectoryStream<Path> files = Files.newDirectoryStream(subdirectory)) {
+					for (Path file : files) {
+						try {
+							BasicFileAttributes attribute = Files.readAttributes(file, BasicFileAttributes.class);
+							entries.add(file);
+							attributes.add(attribute);
+							total += attribute.size();
+						}
+						catch (NoSuchFileException ex) {
+							//Evicted by another job meanwhile
+						}
+					}
+				}
+			}
+		}
+		if (total <= MAX_BYTES)
+			return;
+
+		Integer[] order = new Integer[entries.size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> attributes.get(a).lastModifiedTime().compareTo(attributes.get(b).lastModifiedTime()));
+		for (int i = 0; i < order.length && total > MAX_BYTES / 4 * 3; i++) {
+			Files.deleteIfExists(entries.get(order[i]));
+			total -= attributes.get(order[i]).size();
+		}
+	}
+}
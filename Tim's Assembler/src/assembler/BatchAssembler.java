@@ -0,0 +1,170 @@
+package assembler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**Runs many assembly jobs in one process on a pool of worker threads
+ *
+ * Jobs come either from a manifest file or from a glob over one directory:
+ *
+ * Manifest: one job per line, "input output" separated by whitespace; a line holding only an input writes
+ * next to it with a ".bin" extension, or ".obj" when compiling objects. Relative paths are resolved against the manifest's directory and
+ * lines starting with '#' are skipped. A path holding spaces is written in double quotes. A line with more
+ * than two paths, or an unterminated quote, fails the whole batch before any job runs.
+ *
+ * Glob: any other argument is treated as a file name pattern such as "roms/*.asm", and each match is
+ * written next to itself the same way.
+ *
+ * A status line is printed per job, in job order. Each job writes "<output>.part" next to its output, which
+ * replaces the output only if the job succeeds, so a failed job leaves no partial output behind.
+ */
+public class BatchAssembler {
+	/**Runs every job named by options.batch
+	 * @param Application options; fileInput and fileOutput are ignored
+	 * @return Number of jobs that failed
+	 */
+	public static int run(AppOptions options) throws IOException {
+		List<AppOptions> jobs = readJobs(options);
+		int threads = options.threads > 0 ? options.threads : Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+		List<Future<Integer>> results = new ArrayList<>();
+		for (AppOptions job : jobs)
+			results.add(pool.submit(() -> runJob(job)));
+		pool.shutdown();
+
+		int failed = 0;
+		for (int i = 0; i < jobs.size(); i++) {
+			AppOptions job = jobs.get(i);
+			String status;
+			try {
+				int errors = results.get(i).get();
+				status = errors == 0
+						? "OK     " + job.fileInput + " -> " + job.fileOutput
+						: "FAILED " + job.fileInput + ": " + errors + " line(s) could not be assembled";
+				if (errors != 0) failed++;
+			}
+			catch (ExecutionException ex) {
+				status = "FAILED " + job.fileInput + ": " + ex.getCause();
+				failed++;
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for " + job.fileInput, ex);
+			}
+			System.out.println(status);
+		}
+		System.out.println("Assembled " + (jobs.size() - failed) + " of " + jobs.size() + " file(s)");
+		return failed;
+	}
+
+	/**Builds one set of options per job, copying every other setting from the batch options
+	 * @param Batch options naming a manifest or glob
+	 * @return Options for each job in order
+	 */
+	static List<AppOptions> readJobs(AppOptions options) throws IOException {
+		List<AppOptions> jobs = new ArrayList<>();
+		Path batch = Paths.get(options.batch);
+
+		if (Files.isRegularFile(batch)) {
+			Path base = batch.toAbsolutePath().getParent();
+			try (BufferedReader reader = Files.newBufferedReader(batch, StandardCharsets.UTF_8)) {
+				String line;
+				for (int number = 1; (line = reader.readLine()) != null; number++) {
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#"))
+						continue;
+					List<String> files = fields(line, number);
+					if (files.size() > 2)
+						throw new IOException("Line " + number + " names " + files.size() + " files instead of \"input [output]\"; quote paths holding spaces");
+					Path input = base.resolve(files.get(0));
+					Path output = files.size() > 1 ? base.resolve(files.get(1)) : defaultOutput(input, options);
+					jobs.add(options.forJob(input.toString(), output.toString()));
+				}
+			}
+		}
+		else {
+			Path dir = batch.toAbsolutePath().getParent();
+			try (DirectoryStream<Path> matches = Files.newDirectoryStream(dir, batch.getFileName().toString())) {
+				for (Path input : matches) {
+					if (Files.isRegularFile(input))
+						jobs.add(options.forJob(input.toString(), defaultOutput(input, options).toString()));
+				}
+			}
+			jobs.sort((a, b) -> a.fileInput.compareTo(b.fileInput));
+		}
+		return jobs;
+	}
+
+	/**Splits a manifest line into paths, separated by whitespace or each in double quotes
+	 * @param Manifest line, trimmed and not empty
+	 * @param Line number, from 1, for diagnostics
+	 * @return Paths on the line, in order
+	 */
+	static List<String> fields(String line, int number) throws IOException {
+		List<String> fields = new ArrayList<>();
+		for (int i = 0; i < line.length(); ) {
+			if (Character.isWhitespace(line.charAt(i))) {
+				i++;
+				continue;
+			}
+			int start = i, end;
+			if (line.charAt(i) == '"') {
+				start = i + 1;
+				end = line.indexOf('"', start);
+				if (end < 0)
+					throw new IOException("Line " + number + " has an unterminated quote");
+				i = end + 1;
+				if (end == start || (i < line.length() && !Character.isWhitespace(line.charAt(i))))
+					throw new IOException("Line " + number + " has a malformed quoted path");
+			}
+			else {
+				while (i < line.length() && !Character.isWhitespace(line.charAt(i)))
+					i++;
+				end = i;
+			}
+			fields.add(line.substring(start, end));
+		}
+		return fields;
+	}
+
+	/**Runs one job into a temporary file, which replaces the job's output only if the job succeeds
+	 * @param Options of the job
+	 * @return Number of lines that could not be assembled
+	 */
+	private static int runJob(AppOptions job) throws IOException {
+		Path output = Paths.get(job.fileOutput).toAbsolutePath();
+		//Created by the job itself, so it gets the permissions the output would have had
+		Path temp = output.resolveSibling(output.getFileName() + ".part");
+		try {
+			int errors = new Assembler(job.forJob(job.fileInput, temp.toString())).run();
+			if (errors == 0)
+				Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return errors;
+		}
+		finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * @return Input path with its extension replaced by that of the output format, or ".obj" when compiling objects
+	 */
+	private static Path defaultOutput(Path input, AppOptions options) {
+		String name = input.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		return input.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + (options.isCompileOnly ? ".obj" : options.format.extension));
+	}
+}
@@ -0,0 +1,134 @@
+package assembler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**Streams an image of packed 32-bit words, with no header, to a file or other channel
+ *
+ * Four bytes per word instead of the nine of "v2.0 raw", so the image can be memory-mapped and read as ints.
+ * Words are copied into a direct buffer in the chosen byte order and written out whenever it fills.
+ * Gaps longer than the buffer are seeked over when writing to a file, leaving a hole that reads as zeros.
+ *
+ * Writing to a file, every word stays where it can be patched: a word still buffered is changed there, and one
+ * already flushed has the two bytes of its payload written over in the file. Words are numbered from the
+ * start of the file, so for an image the number of a word is its program address.
+ */
+public class BinaryImageWriter implements ImageWriter {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+	private final IntBuffer ints;
+	private final int[] zeros = new int[1024];
+	/**
+	 * Bytes to seek over before the next write
+	 */
+	private long skipped;
+	/**
+	 * Bytes written to the channel or seeked over so far
+	 */
+	private long flushed;
+
+	/**
+	 * @param Channel the image is written to; closed along with this writer
+	 * @param Byte order of each word
+	 */
+	public BinaryImageWriter(WritableByteChannel channel, ByteOrder order) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(order);
+		this.ints = buffer.asIntBuffer();
+	}
+
+	@Override
+	public void write(int word) throws IOException {
+		if (!ints.hasRemaining())
+			flush();
+		ints.put(word);
+	}
+
+	@Override
+	public void write(int[] words, int offset, int length) throws IOException {
+		int end = offset + length;
+		while (offset < end) {
+			if (!ints.hasRemaining())
+				flush();
+			int count = Math.min(end - offset, ints.remaining());
+			ints.put(words, offset, count);
+			offset += count;
+		}
+	}
+
+	@Override
+	public void fill(int count) throws IOException {
+		if (channel instanceof FileChannel && count > ints.remaining()) {
+			flush();
+			skipped += count * 4L;
+			return;
+		}
+		while (count > 0) {
+			if (!ints.hasRemaining())
+				flush();
+			int length = Math.min(count, Math.min(zeros.length, ints.remaining()));
+			ints.put(zeros, 0, length);
+			count -= length;
+		}
+	}
+
+	@Override
+	public boolean hold() {
+		return channel instanceof FileChannel;
+	}
+
+	@Override
+	public void patch(int address, int payload) throws IOException {
+		long offset = address * 4L, buffered = flushed + skipped;
+		if (offset >= buffered) {
+			int index = (int) ((offset - buffered) / 4);
+			ints.put(index, ints.get(index) & 0xFFFF0000 | payload);
+			return;
+		}
+		//The payload is the low half of the word, so its two bytes come last in big endian order
+		ByteBuffer bytes = ByteBuffer.allocate(2).order(buffer.order());
+		bytes.putShort((short) payload).flip();
+		if (buffer.order() == ByteOrder.BIG_ENDIAN)
+			offset += 2;
+		while (bytes.hasRemaining())
+			((FileChannel) channel).write(bytes, offset + bytes.position());
+	}
+
+	/**Writes everything buffered so far to the channel
+	 */
+	public void flush() throws IOException {
+		if (skipped > 0 && ints.position() > 0) {
+			FileChannel file = (FileChannel) channel;
+			file.position(file.position() + skipped);
+			flushed += skipped;
+			skipped = 0;
+		}
+		buffer.limit(ints.position() * 4).position(0);
+		flushed += buffer.limit();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+		ints.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			//A file ending in a gap still needs its last word written, or it would be cut short
+			if (skipped > 0 && ints.position() == 0) {
+				skipped -= 4;
+				ints.put(0);
+			}
+			flush();
+		}
+		finally {
+			channel.close();
+		}
+	}
+}
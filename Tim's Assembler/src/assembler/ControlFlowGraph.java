@@ -0,0 +1,199 @@
+package assembler;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**Basic blocks of a disassembled image and the jumps between them, written as a Graphviz graph
+ *
+ * A block starts at a leader: address 0, any address a JMP, JMZ or JNG names, and the word after any jump. It
+ * runs to the next leader. A block ending in JMP goes only to its target, one ending in JMZ or JNG to its
+ * target when taken and to the next block when not, and any other block falls through to the next one.
+ *
+ * The graph is filled in while the disassembler scans the image, and labels every leader in the listing
+ * instead of only the jump targets, so each block of the listing starts with a label. Payloads are 16 bits,
+ * so only the first 65536 words can be jumped to; the graph covers those. Words, blocks and edges are held in
+ * int arrays and bitsets sized to the image, so a full 64K-word address space is analysed in milliseconds.
+ *
+ * EX: LDI 3 0001 / JMZ 3,4 0003 / RES / JMP 0000 > blocks L0000 (2 words), L0002 and L0003
+ */
+public class ControlFlowGraph extends JumpTargets {
+	/**
+	 * Number of words a jump can address
+	 */
+	static final int MAX_WORDS = 1 << 16;
+
+	/**
+	 * Most lines of a block written into its node; longer blocks are cut short before their last word
+	 */
+	static final int MAX_NODE_LINES = 16;
+
+	private static final int JMP_CODE = OpCodes.hexDigit(OpCodes.JMP.hexCode);
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	private int[] words = new int[1024];
+	private int length;
+	/**
+	 * True if the image holds more words than MAX_WORDS
+	 */
+	private boolean isTruncated;
+
+	private int blocks;
+	/**
+	 * Address of the first word of each block, followed by the length of the image
+	 */
+	private int[] start;
+	/**
+	 * Block a block's last word jumps to, and block it falls through to, or -1
+	 */
+	private int[] taken, next;
+	/**
+	 * Blocks reachable from address 0
+	 */
+	private BitSet reachable;
+
+	@Override
+	void add(long address, int word, long count) {
+		super.add(address, word, count);
+		if (address + count > MAX_WORDS) {
+			isTruncated = true;
+			count = Math.max(0, MAX_WORDS - address);
+		}
+		if (count == 0)
+			return;
+
+		int end = (int) (address + count);
+		if (end > words.length)
+			words = Arrays.copyOf(words, Math.min(MAX_WORDS, Math.max(end, words.length * 2)));
+		Arrays.fill(words, (int) address, end, word);
+		length = Math.max(length, end);
+	}
+
+	/**Finds the basic blocks once the whole image has been scanned, and marks their leaders to be labelled
+	 * @return False if the image holds more words than a jump can address; only the first MAX_WORDS are covered
+	 */
+	boolean build() {
+		BitSet leaders = new BitSet(length);
+		if (length > 0)
+			leaders.set(0);
+		for (int i = 0; i < length; i++) {
+			int target = OpCodes.jumpTarget(words[i]);
+			if (target < 0)
+				continue;
+			if (target < length)
+				leaders.set(target);
+			if (i + 1 < length)
+				leaders.set(i + 1);
+		}
+
+		blocks = leaders.cardinality();
+		start = new int[blocks + 1];
+		taken = new int[blocks];
+		next = new int[blocks];
+		for (int i = leaders.nextSetBit(0), block = 0; i >= 0; i = leaders.nextSetBit(i + 1), block++) {
+			start[block] = i;
+			mark(i);
+		}
+		start[blocks] = length;
+
+		for (int block = 0; block < blocks; block++) {
+			int last = words[start[block + 1] - 1];
+			int target = OpCodes.jumpTarget(last);
+			taken[block] = target >= 0 && target < length ? Arrays.binarySearch(start, 0, blocks, target) : -1;
+			next[block] = block + 1 < blocks && (target < 0 || last >>> 28 != JMP_CODE) ? block + 1 : -1;
+		}
+
+		//Depth-first walk from the block at address 0; each block is pushed at most once
+		reachable = new BitSet(blocks);
+		int[] stack = new int[blocks];
+		int depth = 0;
+		if (blocks > 0) {
+			reachable.set(0);
+			stack[depth++] = 0;
+		}
+		while (depth > 0) {
+			int block = stack[--depth];
+			for (int edge = 0; edge < 2; edge++) {
+				int successor = edge == 0 ? taken[block] : next[block];
+				if (successor >= 0 && !reachable.get(successor)) {
+					reachable.set(successor);
+					stack[depth++] = successor;
+				}
+			}
+		}
+		return !isTruncated;
+	}
+
+	/**
+	 * @return Number of basic blocks found by build()
+	 */
+	public int blocks() { return blocks; }
+
+	/**
+	 * @return Number of basic blocks found by build() which no path from address 0 reaches
+	 */
+	public int unreachable() { return blocks - reachable.cardinality(); }
+
+	/**Writes the graph in the Graphviz dot language, one box per block holding its listing
+	 *
+	 * Edges of a conditional jump are labelled "taken" and "not taken"; blocks which no path from address 0
+	 * reaches are drawn dashed.
+	 * EX: L0000 [label="L0000:\lLDI 3 0001\lJMZ 3,4 L0003\l"]; L0000 -> L0003 [label="taken"];
+	 * @param File the graph is written to
+	 */
+	public void write(Path file) throws IOException {
+		char[] line = new char[OpCodes.MAX_REVERSE_LENGTH];
+		try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+			out.write("digraph cfg {\n");
+			out.write("\tnode [shape=box fontname=monospace];\n");
+			for (int block = 0; block < blocks; block++) {
+				int first = start[block], end = start[block + 1];
+				out.write('\t');
+				name(out, first);
+				out.write(" [label=\"");
+				name(out, first);
+				out.write(":\\l");
+				for (int i = first; i < end; i++) {
+					if (end - first > MAX_NODE_LINES && i == first + MAX_NODE_LINES - 2) {
+						out.write("... " + (end - first - MAX_NODE_LINES + 1) + " more word(s)\\l");
+						i = end - 1;
+					}
+					int word = words[i];
+					out.write(line, 0, OpCodes.interpretReverse(word, line, 0, contains(word & 0xFFFF)));
+					out.write("\\l");
+				}
+				out.write(reachable.get(block) ? "\"];\n" : "\" style=dashed];\n");
+
+				int last = words[end - 1];
+				boolean isConditional = OpCodes.jumpTarget(last) >= 0 && last >>> 28 != JMP_CODE;
+				edge(out, block, taken[block], isConditional ? "taken" : null);
+				edge(out, block, next[block], isConditional ? "not taken" : null);
+			}
+			out.write("}\n");
+		}
+	}
+
+	private void edge(BufferedWriter out, int from, int to, String label) throws IOException {
+		if (to < 0)
+			return;
+		out.write('\t');
+		name(out, start[from]);
+		out.write(" -> ");
+		name(out, start[to]);
+		if (label != null)
+			out.write(" [label=\"" + label + "\"]");
+		out.write(";\n");
+	}
+
+	/**Writes the label of an address, "L" and four hex digits
+	 */
+	private static void name(BufferedWriter out, int address) throws IOException {
+		out.write('L');
+		for (int shift = 12; shift >= 0; shift -= 4)
+			out.write(HEX_DIGITS[(address >>> shift) & 0xF]);
+	}
+}
@@ -0,0 +1,240 @@
+package assembler;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public enum Directive {
+	/**Assembler directives
+	 * Lines whose first token starts with '.' steer the assembler instead of encoding one instruction.
+	 * Directive names are matched regardless of case, like mnemonics.
+	 */
+
+	/**
+	 * Assembles another source file in place
+	 *
+	 * The path is relative to the directory of the including file, and may be quoted. The file is lexed and
+	 * encoded once per process (see ModuleCache), however many sources include it. Its labels become labels
+	 * of the including program, so including the same file twice defines them twice.
+	 *
+	 * EX: .include "lib/screen.asm"
+	 */
+	INCLUDE (".include"),
+
+	/**
+	 * Starts recording a macro definition, up to the next .endm (see Macros)
+	 *
+	 * EX: .macro plot x y
+	 */
+	MACRO (".macro"),
+
+	/**
+	 * Ends a macro definition
+	 */
+	ENDM (".endm"),
+
+	/**
+	 * Places the next word at a (hex) address at or after the current one
+	 *
+	 * The words skipped over are a gap: they are not held in memory, and are written as zero words, or as
+	 * a hole in bin output. A label on the line names the new address.
+	 *
+	 * EX: .org 8000
+	 */
+	ORG (".org"),
+
+	/**
+	 * Appends one word of up to eight hex digits as it is, for data or for words no instruction encodes to;
+	 * the disassembler writes these for such words
+	 *
+	 * EX: .word 00000000
+	 */
+	WORD (".word");
+
+	public final String stringValue;
+
+	Directive(String stringValue) {
+		this.stringValue = stringValue;
+	}
+
+	/**
+	 * Dispatch table keyed on the three characters after the '.' packed into an int, as OpCodes looks up mnemonics
+	 */
+	private static final int TABLE_BITS = 3;
+	private static final int[] tableKeys = new int[1 << TABLE_BITS];
+	private static final Directive[] tableDirectives = new Directive[1 << TABLE_BITS];
+
+	static {
+		for (Directive directive : values()) {
+			int key = OpCodes.packMnemonic(directive.stringValue, 1);
+			int slot = slot(key);
+			while (tableDirectives[slot] != null)
+				slot = (slot + 1) & (tableDirectives.length - 1);
+			tableKeys[slot] = key;
+			tableDirectives[slot] = directive;
+		}
+	}
+
+	private static int slot(int key) {
+		return (key * 0x9E3779B1) >>> (32 - TABLE_BITS);
+	}
+
+	/**Determines the directive named by the first token of a lexed line
+	 * @param Tokens of one line of assembly input
+	 * @return Matching directive, or null if none matches
+	 */
+	public static Directive determine(Lexer tokens) {
+		int length = tokens.length(0);
+		if (length < 4 || tokens.charAt(0, 0) != '.')
+			return null;
+		int key = OpCodes.packMnemonic(tokens.source(), tokens.start(0) + 1);
+		if (key < 0)
+			return null;
+		for (int slot = slot(key); tableDirectives[slot] != null; slot = (slot + 1) & (tableDirectives.length - 1)) {
+			if (tableKeys[slot] != key)
+				continue;
+			//The key only covers three characters, so compare the rest; names are lowercase letters
+			String name = tableDirectives[slot].stringValue;
+			if (length != name.length())
+				return null;
+			for (int i = 4; i < length; i++) {
+				if ((tokens.charAt(0, i) | 0x20) != name.charAt(i))
+					return null;
+			}
+			return tableDirectives[slot];
+		}
+		return null;
+	}
+
+	/**Interprets one directive line
+	 * @param Tokens of the line, the first starting with '.'
+	 * @param Program image any encoded words are appended to
+	 * @param Labels of the program
+	 * @param Macros of the program
+	 * @param Application options
+	 * @return False if the line could not be assembled
+	 */
+	public static boolean interpret(Lexer tokens, ProgramImage image, Labels labels, Macros macros, AppOptions options) {
+		Directive directive = determine(tokens);
+		if (directive == null || labels == null || macros == null) {
+			options.log.println("Error parsing directive on line: \"" + tokens + "\"");
+			return false;
+		}
+		if (options.isDebug) options.log.println("Assert directive " + directive);
+
+		switch (directive) {
+		case INCLUDE:
+			boolean labelled = !tokens.hasLabel() || OpCodes.defineLabel(tokens, image, labels, options);
+			return include(tokens, image, labels, macros, options) && labelled;
+		case MACRO:
+			return macros.begin(tokens, options);
+		case ORG:
+			return org(tokens, image, labels, options);
+		case WORD:
+			return word(tokens, image, labels, options);
+		default:
+			//.endm is consumed by Macros.record while a definition is open
+			options.log.println(".endm without .macro on line: \"" + tokens + "\"");
+			return false;
+		}
+	}
+
+	/**Appends the cached words of an included file, links its labels at their new address and adds its macros
+	 */
+	private static boolean include(Lexer tokens, ProgramImage image, Labels labels, Macros macros, AppOptions options) {
+		if (tokens.count() < 2) {
+			options.log.println("Error parsing directive on line: \"" + tokens + "\"");
+			return false;
+		}
+		String name = name(tokens);
+		if (!options.isIncludeAllowed) {
+			options.log.println(".include is not allowed in this source on line: \"" + tokens + "\"");
+			return false;
+		}
+
+		ModuleCache.Module module;
+		try {
+			module = ModuleCache.load(resolve(name, options));
+		}
+		catch (IOException ex) {
+			options.log.println("Unable to include '" + name + "' on line: \"" + tokens + "\": " + ex.getMessage());
+			return false;
+		}
+
+		labels.link(module.image, module.labels, image);
+		options.log.print(module.diagnostics);
+
+		String duplicate = macros.addAll(module.macros);
+		if (duplicate != null) {
+			options.log.println("Duplicate macro \"" + duplicate + "\" included on line: \"" + tokens + "\"");
+			return false;
+		}
+		return module.errors == 0;
+	}
+
+	/**Moves the image to the address given, then defines the line's label there
+	 */
+	private static boolean org(Lexer tokens, ProgramImage image, Labels labels, AppOptions options) {
+		int address = tokens.count() == 2 && tokens.length(1) <= 4 ? 0 : -1;
+		for (int i = 0; address >= 0 && i < tokens.length(1); i++) {
+			int digit = OpCodes.hexDigit(tokens.charAt(1, i));
+			address = digit < 0 ? -1 : address << 4 | digit;
+		}
+		if (address < 0) {
+			options.log.println("Error parsing directive on line: \"" + tokens + "\"");
+			return false;
+		}
+		if (!image.org(address)) {
+			options.log.println("Origin below the current address " + String.format("%04X", image.address()) + " on line: \"" + tokens + "\"");
+			return false;
+		}
+		return !tokens.hasLabel() || OpCodes.defineLabel(tokens, image, labels, options);
+	}
+
+	/**Appends the word given in hex, after defining the line's label at its address
+	 */
+	private static boolean word(Lexer tokens, ProgramImage image, Labels labels, AppOptions options) {
+		if (tokens.count() != 2 || tokens.length(1) > 8 || OpCodes.isLabelName(tokens.source(), tokens.start(1), tokens.end(1))) {
+			options.log.println("Error parsing directive on line: \"" + tokens + "\"");
+			return false;
+		}
+		boolean labelled = !tokens.hasLabel() || OpCodes.defineLabel(tokens, image, labels, options);
+		int word = 0;
+		for (int i = 0; i < tokens.length(1); i++)
+			word = word << 4 | OpCodes.hexDigit(tokens.charAt(1, i));
+		image.add(word);
+		if (options.isVerbose) options.log.println("Appended word: " + String.format("%08X", word));
+		return labelled;
+	}
+
+	/**Adds the macros of an included file without assembling it, for Macros.scan; errors are left to the encoder
+	 */
+	static void includeMacros(Lexer tokens, Macros macros, AppOptions options) {
+		if (tokens.count() < 2 || !options.isIncludeAllowed)
+			return;
+		try {
+			macros.addAll(ModuleCache.load(resolve(name(tokens), options)).macros);
+		}
+		catch (IOException ex) {
+			//Reported when the chunk holding the line is encoded
+		}
+	}
+
+	/**
+	 * @return Path named by an .include line; it runs to the last token, so it may hold spaces, and may be quoted
+	 */
+	private static String name(Lexer tokens) {
+		String name = tokens.source().subSequence(tokens.start(1), tokens.end(tokens.count() - 1)).toString();
+		if (name.length() >= 2 && name.startsWith("\"") && name.endsWith("\""))
+			name = name.substring(1, name.length() - 1);
+		return name;
+	}
+
+	/**
+	 * @return Path of an included file, relative to the directory of the including file
+	 */
+	private static Path resolve(String name, AppOptions options) {
+		Path directory = options.fileInput == null ? null : Paths.get(options.fileInput).toAbsolutePath().getParent();
+		return directory == null ? Paths.get(name) : directory.resolve(name);
+	}
+}
@@ -0,0 +1,284 @@
+package assembler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**Turns machine code back into assembly source, one line per word
+ *
+ * Lines are formatted by OpCodes.interpretReverse straight into a fixed char buffer, which is narrowed to ASCII
+ * bytes and written out whenever it fills, so memory use stays the same however many words are disassembled.
+ * Every word gives one line, in order, so the listing assembles back to the same image, and line n holds the
+ * word at address n-1.
+ *
+ * Addresses a jump names get a label, "L" and four hex digits, which the jumps then name instead of the hex
+ * address. All targets must be known before the first line is written, so an image is read twice: once by a
+ * scanning instance, which writes nothing and only counts words and collects targets (see JumpTargets), then
+ * by one writing the listing.
+ *
+ * Input is read straight from bytes, such as a memory-mapped image: "v2.0 raw" text through a table of hex
+ * digit values, packed words with getInt. A run "count*word" is formatted once and copied count times, so a
+ * run of millions of words is never expanded in memory.
+ */
+public class Disassembler implements Closeable {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Value of each byte as a hex digit, or -1
+	 */
+	private static final byte[] NIBBLES = new byte[256];
+
+	static {
+		for (int c = 0; c < 256; c++)
+			NIBBLES[c] = (byte) OpCodes.hexDigit((char) c);
+	}
+
+	/**
+	 * Longest line written for one word: a label definition "L1234: " and the instruction
+	 */
+	private static final int MAX_LINE = 7 + OpCodes.MAX_REVERSE_LENGTH + 1;
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	private final WritableByteChannel channel;
+	private final JumpTargets targets;
+	private final char[] buffer, line;
+	private final byte[] bytes;
+	private int length;
+	/**
+	 * Address of the next word
+	 */
+	private long address;
+
+	/**Starts a listing
+	 * @param Channel the listing is written to; closed along with this disassembler
+	 * @param Targets of every jump in the image, already scanned, or null to write jump targets in hex
+	 * @param Address of the first word disassembled
+	 */
+	public Disassembler(WritableByteChannel channel, JumpTargets targets, long address) {
+		this.channel = channel;
+		this.targets = targets;
+		this.address = address;
+		this.buffer = new char[BUFFER_SIZE];
+		this.bytes = new byte[BUFFER_SIZE];
+		this.line = new char[MAX_LINE];
+	}
+
+	/**Starts a scan, which writes nothing
+	 * @param Set every jump target is added to
+	 */
+	public Disassembler(JumpTargets targets) {
+		this.channel = null;
+		this.targets = targets;
+		this.buffer = this.line = null;
+		this.bytes = null;
+	}
+
+	/**Disassembles one word
+	 * @param Encoded machine code word
+	 */
+	public void word(int word) throws IOException {
+		if (channel == null) {
+			targets.add(address, word, 1);
+			address++;
+			return;
+		}
+		if (length > BUFFER_SIZE - MAX_LINE)
+			flush();
+		length = format(address++, word, buffer, length);
+	}
+
+	/**Formats the line of a word, with its label if it has one
+	 * @param Address of the word
+	 * @return Index after the line
+	 */
+	private int format(long address, int word, char[] to, int at) {
+		if (targets != null && targets.contains(address)) {
+			to[at++] = 'L';
+			for (int shift = 12; shift >= 0; shift -= 4)
+				to[at++] = HEX_DIGITS[(int) (address >>> shift) & 0xF];
+			to[at++] = ':';
+			to[at++] = ' ';
+		}
+		at = OpCodes.interpretReverse(word, to, at, targets != null && targets.contains(word & 0xFFFF));
+		to[at++] = '\n';
+		return at;
+	}
+
+	/**Disassembles a run of equal words
+	 * @param Encoded machine code word
+	 * @param Number of times it repeats
+	 */
+	public void run(int word, long count) throws IOException {
+		if (channel == null) {
+			targets.add(address, word, count);
+			address += count;
+			return;
+		}
+		//Words at labelled addresses are formatted one by one; the line of any other word is the same each time
+		long address = this.address;
+		int lineLength = -1;
+		for (long i = 0; i < count; i++, address++) {
+			if (length > BUFFER_SIZE - MAX_LINE)
+				flush();
+			if (targets != null && targets.contains(address)) {
+				length = format(address, word, buffer, length);
+				continue;
+			}
+			if (lineLength < 0)
+				lineLength = format(address, word, line, 0);
+			System.arraycopy(line, 0, buffer, length, lineLength);
+			length += lineLength;
+		}
+		this.address = address;
+	}
+
+	/**
+	 * @return Address of the next word; after a scan, the number of words in the image
+	 */
+	public long address() { return address; }
+
+	/**Disassembles packed 32-bit words
+	 * @param Buffer holding the words, in the buffer's byte order
+	 * @param Index of the first byte of the first word
+	 * @param Index one past the last byte
+	 * @param Where to report a partial word at the end, or null to leave it unreported
+	 * @return Number of errors: 1 if the range ends with a partial word, which is left out, else 0
+	 */
+	public int words(ByteBuffer image, int start, int end, PrintStream log) throws IOException {
+		int i = start;
+		for (; i < end - 3; i += 4)
+			word(image.getInt(i));
+		if (i == end)
+			return 0;
+		if (log != null)
+			log.println("Image ends with a partial word of " + (end - i) + " byte(s)");
+		return 1;
+	}
+
+	/**Disassembles every line in a range of "v2.0 raw" image text
+	 * @param Buffer holding the text
+	 * @param Offset of the first character of the range
+	 * @param Offset one past the last character of the range
+	 * @param Where to report lines which are not part of an image, or null to leave them unreported
+	 * @return Number of such lines
+	 */
+	public int lines(AsciiBuffer text, int start, int end, PrintStream log) throws IOException {
+		ByteBuffer bytes = text.bytes();
+		int errors = 0, lineStart = start;
+		for (int i = start; i <= end; i++) {
+			if (i == end || bytes.get(i) == '\n') {
+				if (!line(bytes, lineStart, i)) {
+					if (log != null)
+						log.println("Error parsing machine code on line: \"" + text.subSequence(lineStart, i) + "\"");
+					errors++;
+				}
+				lineStart = i + 1;
+			}
+		}
+		return errors;
+	}
+
+	/**Disassembles one line of a Logisim "v2.0 raw" image
+	 *
+	 * A line holds words of up to eight hex digits, or runs "count*word" with a decimal count, separated by
+	 * blanks; '#' starts a comment. The "v2.0 raw" header holds no words.
+	 * @param Buffer holding the image text
+	 * @param Index of the first byte of the line
+	 * @param Index one past the last byte of the line, before its line break
+	 * @return False if the line holds anything else; nothing is written for it then
+	 */
+	public boolean line(ByteBuffer text, int start, int end) throws IOException {
+		if (end - start >= 8 && isHeader(text, start))
+			return true;
+
+		//Check the whole line first, so that a bad token leaves nothing half written
+		for (int pass = 0; pass < 2; pass++) {
+			int i = start;
+			while (i < end) {
+				int c = text.get(i) & 0xFF;
+				if (c == '#')
+					break;
+				if (isBlank(c)) {
+					i++;
+					continue;
+				}
+
+				long count = 1;
+				int tokenStart = i;
+				while (i < end && isDecimal(text.get(i)))
+					i++;
+				if (i < end && text.get(i) == '*') {
+					if (i == tokenStart || i - tokenStart > 18)
+						return false;
+					count = 0;
+					for (int j = tokenStart; j < i; j++)
+						count = count * 10 + text.get(j) - '0';
+					tokenStart = ++i;
+				}
+				else
+					i = tokenStart;
+
+				int word = 0, digit;
+				for (; i < end && (digit = NIBBLES[text.get(i) & 0xFF]) >= 0; i++)
+					word = word << 4 | digit;
+				if (i == tokenStart || i - tokenStart > 8 || (i < end && !isBlank(text.get(i) & 0xFF) && text.get(i) != '#'))
+					return false;
+				if (pass == 1) {
+					if (count == 1)
+						word(word);
+					else
+						run(word, count);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return True if the bytes at the index read "v2.0 raw"
+	 */
+	static boolean isHeader(ByteBuffer text, int start) {
+		String header = "v2.0 raw";
+		if (text.limit() - start < header.length())
+			return false;
+		for (int i = 0; i < header.length(); i++) {
+			if (text.get(start + i) != header.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isBlank(int c) {
+		return c == ' ' || c == '\t' || c == '\r';
+	}
+
+	private static boolean isDecimal(byte c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/**Writes everything buffered so far
+	 */
+	public void flush() throws IOException {
+		if (channel == null)
+			return;
+		for (int i = 0; i < length; i++)
+			bytes[i] = (byte) buffer[i];
+		ByteBuffer out = ByteBuffer.wrap(bytes, 0, length);
+		while (out.hasRemaining())
+			channel.write(out);
+		length = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		}
+		finally {
+			if (channel != null)
+				channel.close();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package assembler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**Output stage of assembly: streams encoded words to a file or other channel in one of the image formats
+ */
+public interface ImageWriter extends Closeable {
+	/**Output image formats, chosen with --format
+	 */
+	enum Format {
+		/**
+		 * Logisim "v2.0 raw" text, one word of eight hex digits per line
+		 */
+		RAW (".bin"),
+
+		/**
+		 * Packed 32-bit words, in the byte order chosen with --endian
+		 */
+		BIN (".bin"),
+
+		/**
+		 * Intel HEX records, with byte addresses; words are split in the byte order chosen with --endian
+		 */
+		IHEX (".hex"),
+
+		/**
+		 * Motorola S-records, with byte addresses; words are split in the byte order chosen with --endian
+		 */
+		SREC (".srec");
+
+		/**
+		 * Extension of output files named after their input in batch mode
+		 */
+		public final String extension;
+
+		Format(String extension) {
+			this.extension = extension;
+		}
+
+		/**
+		 * @return Format with the given name, regardless of case, or null if none matches
+		 */
+		static Format fromName(String name) {
+			for (Format format : values()) {
+				if (format.name().equalsIgnoreCase(name))
+					return format;
+			}
+			return null;
+		}
+	}
+
+	/**Writes one encoded word
+	 * @param Encoded instruction word
+	 */
+	void write(int word) throws IOException;
+
+	/**Writes a run of encoded words
+	 * @param Array holding the words
+	 * @param Index of the first word to write
+	 * @param Number of words to write
+	 */
+	void write(int[] words, int offset, int length) throws IOException;
+
+	/**Writes zero words over a gap in the image
+	 * @param Number of words in the gap
+	 */
+	void fill(int count) throws IOException;
+
+	/**Starts holding the words written next, so that patch() can still change them until release()
+	 * @return False if this writer cannot change words it has written; nothing changes then
+	 */
+	default boolean hold() throws IOException { return false; }
+
+	/**Replaces the payload of a word written since hold(), leaving its upper 16 bits alone
+	 * @param Program address of the word
+	 * @param 16-bit payload
+	 */
+	default void patch(int address, int payload) throws IOException {
+		throw new UnsupportedOperationException("Words written are final");
+	}
+
+	/**Stops holding the words written; they are final from here on
+	 */
+	default void release() throws IOException { }
+
+	/**Opens the output file named in the options, truncating it
+	 * @param Application options naming the output file and format
+	 * @return Writer for the chosen format, which can hold words written, and also records the words for the
+	 * job's round trip check, if any
+	 */
+	static ImageWriter open(AppOptions options) throws IOException {
+		ImageWriter out = open(FileChannel.open(Paths.get(options.fileOutput),
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING), options);
+		//Packed words are patched where they were written; the other formats hold them in a file of packed words
+		if (options.format != Format.BIN)
+			out = new SpillImageWriter(out);
+		return options.roundTrip != null ? options.roundTrip.record(out) : out;
+	}
+
+	/**Starts an image on an already open channel
+	 * @param Channel the image is written to; closed along with the writer
+	 * @param Application options naming the format
+	 * @return Writer for the chosen format
+	 */
+	static ImageWriter open(WritableByteChannel channel, AppOptions options) throws IOException {
+		switch (options.format) {
+		case BIN:
+			return new BinaryImageWriter(channel, options.isLittleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		case IHEX:
+			return new IntelHexImageWriter(channel, options.isLittleEndian);
+		case SREC:
+			return new SRecordImageWriter(channel, options.isLittleEndian);
+		default:
+			return new RawImageWriter(channel);
+		}
+	}
+}
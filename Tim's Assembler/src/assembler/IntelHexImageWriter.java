@@ -0,0 +1,65 @@
+package assembler;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**Streams an image as Intel HEX records, for device programmers
+ *
+ * Data records (type 00) carry 16 bit addresses, so records never cross a 64 KiB boundary, and an extended
+ * linear address record (type 04) gives the upper 16 bits whenever they change. The file ends with an end of
+ * file record (type 01). Each checksum is the two's complement of the sum of the record's bytes.
+ *
+ * EX: words C3001234 1F001234 at address 0 > ":08000000C30012341F0012348A"
+ */
+public class IntelHexImageWriter extends RecordImageWriter {
+	private static final int DATA = 0x00, END_OF_FILE = 0x01, EXTENDED_LINEAR_ADDRESS = 0x04;
+
+	/**
+	 * Upper 16 bits of the address last given by an extended linear address record
+	 */
+	private long segment;
+
+	/**
+	 * @param Channel the image is written to; closed along with this writer
+	 * @param True to split each word into bytes lowest first
+	 */
+	public IntelHexImageWriter(WritableByteChannel channel, boolean isLittleEndian) {
+		super(channel, isLittleEndian, 0xFFFF);
+	}
+
+	@Override
+	void writeData(long address, byte[] data, int length) throws IOException {
+		if (address > 0xFFFFFFFFL)
+			throw new IOException("Image too large for Intel HEX");
+		if ((address >>> 16) != segment) {
+			segment = address >>> 16;
+			begin(":");
+			put(2);
+			put(0);
+			put(0);
+			put(EXTENDED_LINEAR_ADDRESS);
+			put((int) (segment >>> 8));
+			put((int) segment);
+			end(-checksum());
+		}
+
+		begin(":");
+		put(length);
+		put((int) (address >>> 8));
+		put((int) address);
+		put(DATA);
+		for (int i = 0; i < length; i++)
+			put(data[i]);
+		end(-checksum());
+	}
+
+	@Override
+	void writeEnd() throws IOException {
+		begin(":");
+		put(0);
+		put(0);
+		put(0);
+		put(END_OF_FILE);
+		end(-checksum());
+	}
+}
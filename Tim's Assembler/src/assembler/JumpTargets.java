@@ -0,0 +1,61 @@
+package assembler;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**Addresses named by the jump instructions of an image, so that the disassembler can label them
+ *
+ * Payloads are 16 bits, so the set is a fixed bitset of 65536 bits. Chunks of an image may be scanned on
+ * several threads at once; each bit is set with a compare-and-set, and only when it is not set yet, so threads
+ * jumping to the same few addresses mostly just read.
+ */
+public class JumpTargets {
+	private final AtomicLongArray bits = new AtomicLongArray(1 << 10);
+	/**
+	 * Number of words in the image; addresses past it have no line to label
+	 */
+	private volatile long words = 1 << 16;
+
+	/**Adds the target of a word, if it is a jump the disassembler writes as an instruction
+	 * @param Encoded machine code word
+	 */
+	public void add(int word) {
+		int target = OpCodes.jumpTarget(word);
+		if (target >= 0)
+			mark(target);
+	}
+
+	/**Adds the targets of a run of equal words, as the scanning disassembler reads them
+	 * @param Address of the first word, counted from the start of the chunk being scanned
+	 * @param Encoded machine code word
+	 * @param Number of times it repeats
+	 */
+	void add(long address, int word, long count) {
+		add(word);
+	}
+
+	/**Marks an address to be labelled
+	 * @param Address below 65536
+	 */
+	void mark(int address) {
+		int index = address >>> 6;
+		long bit = 1L << address;
+		long current;
+		while (((current = bits.get(index)) & bit) == 0) {
+			if (bits.compareAndSet(index, current, current | bit))
+				return;
+		}
+	}
+
+	/**Sets the number of words in the image, once the whole image has been scanned
+	 */
+	public void limit(long words) {
+		this.words = words;
+	}
+
+	/**
+	 * @return True if some jump names the address, and the image holds a word there
+	 */
+	public boolean contains(long address) {
+		return address < words && address < 1 << 16 && (bits.get((int) address >>> 6) & 1L << address) != 0;
+	}
+}
@@ -0,0 +1,283 @@
+package assembler;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**Labels of one program, resolved in a single pass over the source
+ *
+ * A payload naming a label that is already defined gets its address straight away. A payload naming a label
+ * defined further down is encoded as 0000 and recorded as a fixup: the address of the word to patch, chained
+ * to the other fixups waiting on the same name. Defining the label walks its chain and patches the payloads
+ * in the program image. The image must hold every word from firstPending() onwards until then, so the output
+ * stage only writes out words before it, or has the writer hold them once there are many (see Assembler.drain).
+ * Whatever is still waiting at the end is reported in one batch.
+ *
+ * A deferred instance, used for one chunk of a parallel job, one included module or one macro expansion,
+ * resolves nothing: it records definitions and references with addresses relative to its first word, and link()
+ * later replays them into the labels of the program they are placed in. Addresses after an .org in the chunk
+ * are already absolute; they are recorded complemented (~address), so they stay apart from relative ones.
+ */
+public class Labels {
+	private final AppOptions options;
+	private final boolean deferred;
+	private final SymbolTable symbols;
+
+	/**
+	 * Newest fixup waiting on each name, or MISSING once the name is defined
+	 */
+	private final SymbolTable waiting;
+	/**
+	 * Fixups in address order: address of the word to patch (-1 once patched) and the previous fixup on the same name
+	 */
+	private int[] fixupAddress, fixupPrevious;
+	private int fixups, firstFixup, pending, errors;
+
+	/**
+	 * Deferred definitions and references, three ints each: name start and end in names, and relative address, or
+	 * the complement of an absolute one
+	 */
+	private final StringBuilder names;
+	private int[] definitions = new int[0], references = new int[0];
+	private int definitionInts, referenceInts;
+
+	/**
+	 * @param Application options; diagnostics go to options.log
+	 */
+	public Labels(AppOptions options) {
+		this(options, false);
+	}
+
+	/**
+	 * @param Application options; diagnostics go to options.log
+	 * @param True to only record definitions and references, for link() to resolve later
+	 */
+	public Labels(AppOptions options, boolean deferred) {
+		this.options = options;
+		this.deferred = deferred;
+		//A deferred instance resolves nothing, so it only needs the name pool; macro expansions make many of them
+		this.names = deferred ? new StringBuilder() : null;
+		this.symbols = deferred ? null : new SymbolTable();
+		this.waiting = deferred ? null : new SymbolTable();
+		this.fixupAddress = new int[deferred ? 0 : 64];
+		this.fixupPrevious = new int[deferred ? 0 : 64];
+	}
+
+	/**Looks up a label which a payload names
+	 * @param Buffer holding the label name
+	 * @param Offset of the first character of the name
+	 * @param Offset one past the last character of the name
+	 * @return Address of the label, or SymbolTable.MISSING if it is not defined yet
+	 */
+	public int find(CharSequence source, int start, int end) {
+		return deferred ? SymbolTable.MISSING : symbols.find(source, start, end);
+	}
+
+	/**Records a word whose payload names a label that is not defined yet
+	 * @param Buffer holding the label name
+	 * @param Offset of the first character of the name
+	 * @param Offset one past the last character of the name
+	 * @param Address of the word to patch
+	 * @param Program image the word is added to
+	 */
+	public void reference(CharSequence source, int start, int end, int address, ProgramImage image) {
+		reference(source, start, end, address, image.hasOrigin());
+	}
+
+	private void reference(CharSequence source, int start, int end, int address, boolean absolute) {
+		if (deferred) {
+			references = record(references, referenceInts, source, start, end, absolute ? ~address : address);
+			referenceInts += 3;
+			return;
+		}
+
+		if (fixups == fixupAddress.length) {
+			fixupAddress = Arrays.copyOf(fixupAddress, fixups * 2);
+			fixupPrevious = Arrays.copyOf(fixupPrevious, fixups * 2);
+		}
+		fixupAddress[fixups] = address;
+		fixupPrevious[fixups] = waiting.put(source, start, end, fixups);
+		fixups++;
+		pending++;
+	}
+
+	/**Defines a label and patches every word waiting on it
+	 * @param Buffer holding the label name
+	 * @param Offset of the first character of the name
+	 * @param Offset one past the last character of the name
+	 * @param Address of the word following the label
+	 * @param Program image holding the words to patch
+	 * @return False if the label was already defined
+	 */
+	public boolean define(CharSequence source, int start, int end, int address, ProgramImage image) {
+		return define(source, start, end, address, image.hasOrigin(), image);
+	}
+
+	private boolean define(CharSequence source, int start, int end, int address, boolean absolute, ProgramImage image) {
+		if (deferred) {
+			definitions = record(definitions, definitionInts, source, start, end, absolute ? ~address : address);
+			definitionInts += 3;
+			return true;
+		}
+
+		if (!symbols.define(source, start, end, address))
+			return false;
+		if (pending == 0)
+			return true;
+
+		int fixup = waiting.find(source, start, end);
+		if (fixup == SymbolTable.MISSING)
+			return true;
+		waiting.put(source, start, end, SymbolTable.MISSING);
+		if (address > 0xFFFF)
+			options.log.println("Label address out of range: \"" + source.subSequence(start, end) + "\"");
+		for (; fixup != SymbolTable.MISSING; fixup = fixupPrevious[fixup]) {
+			if (address > 0xFFFF)
+				errors++;
+			else
+				image.patch(fixupAddress[fixup], address);
+			fixupAddress[fixup] = -1;
+			pending--;
+		}
+
+		while (firstFixup < fixups && fixupAddress[firstFixup] < 0)
+			firstFixup++;
+		if (firstFixup == fixups)
+			fixups = firstFixup = 0;
+		return true;
+	}
+
+	private int[] record(int[] list, int used, CharSequence source, int start, int end, int address) {
+		if (used + 3 > list.length)
+			list = Arrays.copyOf(list, Math.max(48, list.length * 2));
+		list[used] = names.length();
+		names.append(source, start, end);
+		list[used + 1] = names.length();
+		list[used + 2] = address;
+		return list;
+	}
+
+	/**Appends the words of a chunk encoded with deferred labels to the image, and replays the chunk's
+	 * definitions and references at the address it lands on
+	 *
+	 * Linking into another deferred instance records them again, moved by the base address.
+	 * @param Words of the chunk
+	 * @param Deferred labels of the chunk
+	 * @param Program image the chunk is appended to, holding the words to patch
+	 */
+	public void link(ProgramImage chunkImage, Labels chunk, ProgramImage image) {
+		int base = image.address();
+		boolean placed = image.hasOrigin(), overlaps = !image.addAll(chunkImage);
+		if (overlaps) {
+			options.log.println("Origin below the address already reached; code would overlap at " + String.format("%04X", image.address()));
+			errors++;
+		}
+
+		for (int i = 0; i < chunk.definitionInts; i += 3) {
+			int start = chunk.definitions[i], end = chunk.definitions[i + 1], recorded = chunk.definitions[i + 2];
+			if (!define(chunk.names, start, end, recorded < 0 ? ~recorded : base + recorded, placed || recorded < 0, image)) {
+				options.log.println("Duplicate label: \"" + chunk.names.subSequence(start, end) + "\"");
+				errors++;
+			}
+		}
+		for (int i = 0; i < chunk.referenceInts; i += 3) {
+			int start = chunk.references[i], end = chunk.references[i + 1], recorded = chunk.references[i + 2];
+			//Words after a dropped origin were not placed at their address, so there is nothing there to patch
+			if (overlaps && recorded < 0)
+				continue;
+			int address = recorded < 0 ? ~recorded : base + recorded;
+			int label = find(chunk.names, start, end);
+			if (label == SymbolTable.MISSING)
+				reference(chunk.names, start, end, address, placed || recorded < 0);
+			else if (label > 0xFFFF) {
+				options.log.println("Label address out of range: \"" + chunk.names.subSequence(start, end) + "\"");
+				errors++;
+			}
+			else
+				image.patch(address, label);
+		}
+	}
+
+	/**Writes the definitions and references of a deferred instance, for an object file (see ObjectFile)
+	 * @param Stream the object file is written to
+	 */
+	void write(DataOutputStream out) throws IOException {
+		byte[] pool = names.toString().getBytes(StandardCharsets.UTF_8);
+		out.writeInt(pool.length);
+		out.write(pool);
+		writeRecords(out, definitions, definitionInts);
+		writeRecords(out, references, referenceInts);
+	}
+
+	private static void writeRecords(DataOutputStream out, int[] list, int used) throws IOException {
+		out.writeInt(used / 3);
+		for (int i = 0; i < used; i++)
+			out.writeInt(list[i]);
+	}
+
+	/**Reads deferred labels written by write()
+	 * @param Buffer positioned at the labels
+	 * @param Number of words they were recorded against; every relative address must fall within them
+	 * @param Application options; diagnostics go to options.log
+	 * @return Deferred labels, ready to link()
+	 */
+	static Labels read(ByteBuffer in, int words, AppOptions options) throws IOException {
+		Labels labels = new Labels(options, true);
+		int poolLength = in.getInt();
+		if (poolLength < 0 || poolLength > in.remaining())
+			throw new IOException("Corrupt label names");
+		byte[] pool = new byte[poolLength];
+		in.get(pool);
+		labels.names.append(new String(pool, StandardCharsets.UTF_8));
+
+		labels.definitions = readRecords(in, labels.names.length(), words + 1);
+		labels.definitionInts = labels.definitions.length;
+		labels.references = readRecords(in, labels.names.length(), words);
+		labels.referenceInts = labels.references.length;
+		return labels;
+	}
+
+	private static int[] readRecords(ByteBuffer in, int namesLength, int addresses) throws IOException {
+		int count = in.getInt();
+		if (count < 0 || count > in.remaining() / 12)
+			throw new IOException("Corrupt label records");
+		int[] list = new int[count * 3];
+		in.asIntBuffer().get(list);
+		in.position(in.position() + list.length * 4);
+		for (int i = 0; i < list.length; i += 3) {
+			if (list[i] < 0 || list[i] >= list[i + 1] || list[i + 1] > namesLength || list[i + 2] >= addresses)
+				throw new IOException("Corrupt label record " + i / 3);
+		}
+		return list;
+	}
+
+	/**
+	 * @return Lowest address of a word still waiting on a label, or Integer.MAX_VALUE if none is
+	 */
+	public int firstPending() {
+		return pending == 0 ? Integer.MAX_VALUE : fixupAddress[firstFixup];
+	}
+
+	/**Reports every label still referenced but never defined, once the whole source has been read
+	 * @return Number of errors found while linking, counting each reference to an undefined label
+	 */
+	public int finish() {
+		if (pending > 0) {
+			waiting.forEach((pool, start, end, fixup) -> {
+				if (fixup == SymbolTable.MISSING)
+					return;
+				//Chains run from the newest reference back to the first
+				int references = 1;
+				for (; fixupPrevious[fixup] != SymbolTable.MISSING; fixup = fixupPrevious[fixup])
+					references++;
+				options.log.println("Undefined label \"" + pool.subSequence(start, end) + "\": " + references
+						+ " reference(s), first at address " + String.format("%04X", fixupAddress[fixup]));
+			});
+			errors += pending;
+			pending = 0;
+		}
+		return errors;
+	}
+}
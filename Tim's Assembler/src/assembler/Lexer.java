@@ -0,0 +1,161 @@
+package assembler;
+
+import java.util.Arrays;
+
+/**Single-pass scanner splitting one line of assembly into tokens
+ *
+ * Tokens are kept as offsets into the source buffer rather than as Strings, so lexing a line allocates nothing.
+ * Spaces, tabs and commas separate tokens; ';', "//" and '#' start a comment running to the end of the line.
+ * A first token ending in ':' defines a label; it is kept apart, so token 0 is always the mnemonic.
+ *
+ * EX: "  ADD F,3   2 0001 ; comment" > [ADD] [F] [3] [2] [0001]
+ * EX: "loop: JMP loop" > label [loop], tokens [JMP] [loop]
+ */
+public class Lexer {
+	private CharSequence source;
+	private int[] tokenStart = new int[8];
+	private int[] tokenEnd = new int[8];
+	private int tokenCount;
+	private int labelStart = -1, labelEnd = -1;
+
+	/**Splits a whole line into tokens
+	 * @param Line of assembly input
+	 * @return Number of tokens found
+	 */
+	public int lex(CharSequence line) {
+		return lex(line, 0, line.length());
+	}
+
+	/**Splits the given range of a buffer into tokens
+	 * @param Buffer holding assembly input
+	 * @param Offset of the first character of the line
+	 * @param Offset one past the last character of the line
+	 * @return Number of tokens found
+	 */
+	public int lex(CharSequence source, int start, int end) {
+		this.source = source;
+		tokenCount = 0;
+		labelStart = labelEnd = -1;
+
+		//Each character is read once; begin is the start of the token being scanned, or -1 between tokens
+		int begin = -1;
+		for (int i = start; i < end; i++) {
+			char c = source.charAt(i);
+			byte kind = c < CHAR_CLASS.length ? CHAR_CLASS[c] : TOKEN;
+			if (kind == SLASH)
+				kind = i + 1 < end && source.charAt(i + 1) == '/' ? COMMENT : TOKEN;
+			if (kind == TOKEN) {
+				if (begin < 0)
+					begin = i;
+				continue;
+			}
+
+			if (begin >= 0) {
+				addToken(begin, i);
+				begin = -1;
+			}
+			if (kind == COMMENT)
+				return splitLabel();
+		}
+		if (begin >= 0)
+			addToken(begin, end);
+		return splitLabel();
+	}
+
+	/**Moves a leading "name:" token out of the token list
+	 * @return Number of tokens left
+	 */
+	private int splitLabel() {
+		if (tokenCount == 0 || source.charAt(tokenEnd[0] - 1) != ':')
+			return tokenCount;
+		labelStart = tokenStart[0];
+		labelEnd = tokenEnd[0] - 1;
+		tokenCount--;
+		System.arraycopy(tokenStart, 1, tokenStart, 0, tokenCount);
+		System.arraycopy(tokenEnd, 1, tokenEnd, 0, tokenCount);
+		return tokenCount;
+	}
+
+	private static final byte TOKEN = 0, SEPARATOR = 1, COMMENT = 2, SLASH = 3;
+	private static final byte[] CHAR_CLASS = new byte[128];
+
+	static {
+		for (char c : new char[] { ' ', ',', '\t', '\r', '\n', '\f' })
+			CHAR_CLASS[c] = SEPARATOR;
+		CHAR_CLASS[';'] = COMMENT;
+		CHAR_CLASS['#'] = COMMENT;
+		CHAR_CLASS['/'] = SLASH;
+	}
+
+	private void addToken(int begin, int end) {
+		if (tokenCount == tokenStart.length) {
+			tokenStart = Arrays.copyOf(tokenStart, tokenCount * 2);
+			tokenEnd = Arrays.copyOf(tokenEnd, tokenCount * 2);
+		}
+		tokenStart[tokenCount] = begin;
+		tokenEnd[tokenCount] = end;
+		tokenCount++;
+	}
+
+	/**
+	 * @return Number of tokens on the last line lexed
+	 */
+	public int count() { return tokenCount; }
+
+	/**
+	 * @return True if the last line lexed defines a label
+	 */
+	public boolean hasLabel() { return labelStart >= 0; }
+
+	/**
+	 * @return Offset of the first character of the label name in the source buffer
+	 */
+	public int labelStart() { return labelStart; }
+
+	/**
+	 * @return Offset one past the last character of the label name, leaving out the ':'
+	 */
+	public int labelEnd() { return labelEnd; }
+
+	/**
+	 * @return Buffer the current tokens point into
+	 */
+	public CharSequence source() { return source; }
+
+	/**
+	 * @return Offset of the first character of the token in the source buffer
+	 */
+	public int start(int token) { return tokenStart[token]; }
+
+	/**
+	 * @return Offset one past the last character of the token in the source buffer
+	 */
+	public int end(int token) { return tokenEnd[token]; }
+
+	/**
+	 * @return Number of characters in the token
+	 */
+	public int length(int token) { return tokenEnd[token] - tokenStart[token]; }
+
+	/**
+	 * @return Character at the given position within the token
+	 */
+	public char charAt(int token, int index) { return source.charAt(tokenStart[token] + index); }
+
+	/**
+	 * @return Text of one token; allocates, so only meant for diagnostics
+	 */
+	public String toString(int token) {
+		return source.subSequence(tokenStart[token], tokenEnd[token]).toString();
+	}
+
+	/**
+	 * @return Text of the line from its first to its last token; allocates, so only meant for diagnostics
+	 */
+	@Override
+	public String toString() {
+		if (tokenCount == 0)
+			return hasLabel() ? source.subSequence(labelStart, labelEnd + 1).toString() : "";
+		return source.subSequence(hasLabel() ? labelStart : tokenStart[0], tokenEnd[tokenCount - 1]).toString();
+	}
+}
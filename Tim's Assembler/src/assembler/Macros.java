@@ -0,0 +1,350 @@
+package assembler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**Macros of one program, with a cache of their expansions
+ *
+ * A macro is defined between ".macro name param..." and ".endm", and invoked like an instruction:
+ *   .macro plot x y color
+ *   	LDI 1 x
+ *   	LDI 2 y
+ *   	LDI 3 color
+ *   	WOP 1,2
+ *   .endm
+ *   	plot 0040 0040 7FFF
+ *
+ * Body tokens equal to a parameter name are replaced by the argument. Each distinct name and argument tuple
+ * is lexed and encoded once, into words and deferred labels (see Labels); later invocations append those words
+ * and link the labels at their own address, without lexing the body again. Up to CACHE_LIMIT expansions are kept.
+ *
+ * Macro names are case-sensitive and may not be mnemonics. A label defined in a body is defined again by every
+ * invocation, so a macro holding one can only be invoked once.
+ */
+public class Macros {
+	/**
+	 * Deepest nesting of macros invoking macros
+	 */
+	static final int MAX_DEPTH = 64;
+
+	/**
+	 * Most expansions kept per program; invocations with new arguments past it are encoded every time
+	 */
+	static final int CACHE_LIMIT = 1 << 16;
+
+	/**A recorded definition; immutable once .endm is reached, so definitions are shared between Macros
+	 */
+	static class Macro {
+		final String name;
+		final String[] parameters;
+		/**
+		 * Body lines, each the label name or null followed by the tokens
+		 */
+		final List<String[]> body = new ArrayList<>();
+
+		Macro(String name, String[] parameters) {
+			this.name = name;
+			this.parameters = parameters;
+		}
+	}
+
+	/**Encoded words and deferred labels of one expansion
+	 */
+	static class Expansion {
+		final ProgramImage image;
+		final Labels labels;
+
+		Expansion(ProgramImage image, Labels labels) {
+			this.image = image;
+			this.labels = labels;
+		}
+	}
+
+	private final SymbolTable names = new SymbolTable();
+	private final List<Macro> macros = new ArrayList<>();
+	private Macro recording;
+
+	private final SymbolTable cached = new SymbolTable();
+	private final List<Expansion> expansions = new ArrayList<>();
+	private final StringBuilder key = new StringBuilder();
+	private int depth;
+
+	/**
+	 * @return Copy of the definitions, including one still being recorded, with an empty expansion cache
+	 */
+	public Macros snapshot() {
+		Macros copy = new Macros();
+		copy.addAll(this);
+		if (recording != null) {
+			copy.recording = new Macro(recording.name, recording.parameters);
+			copy.recording.body.addAll(recording.body);
+		}
+		return copy;
+	}
+
+	/**Defines every macro of another program, such as an included module
+	 * @return Name of a macro already defined here, or null
+	 */
+	public String addAll(Macros other) {
+		String duplicate = null;
+		for (Macro macro : other.macros) {
+			if (!add(macro))
+				duplicate = macro.name;
+		}
+		return duplicate;
+	}
+
+	private boolean add(Macro macro) {
+		if (!names.define(macro.name, 0, macro.name.length(), macros.size()))
+			return false;
+		macros.add(macro);
+		return true;
+	}
+
+	/**
+	 * @return True between a .macro line and its .endm
+	 */
+	public boolean recording() { return recording != null; }
+
+	/**Starts recording a definition
+	 * @param Tokens of a ".macro name param..." line
+	 * @return False if the line is not a valid definition
+	 */
+	public boolean begin(Lexer tokens, AppOptions options) {
+		if (tokens.count() < 2 || tokens.hasLabel() || OpCodes.fromName(tokens.toString(1)) != null || tokens.charAt(1, 0) == '.') {
+			options.log.println("Error parsing macro definition on line: \"" + tokens + "\"");
+			return false;
+		}
+		String[] parameters = new String[tokens.count() - 2];
+		for (int i = 0; i < parameters.length; i++)
+			parameters[i] = tokens.toString(i + 2);
+		recording = new Macro(tokens.toString(1), parameters);
+		return true;
+	}
+
+	/**Records one line of the definition being recorded, ending it at .endm
+	 * @param Tokens of the line
+	 * @return False if the line is not allowed in a definition, or the macro is already defined
+	 */
+	public boolean record(Lexer tokens, AppOptions options) {
+		if (tokens.count() == 0) {
+			if (tokens.hasLabel())
+				recording.body.add(new String[] { labelName(tokens) });
+			return true;
+		}
+
+		Directive directive = tokens.charAt(0, 0) == '.' ? Directive.determine(tokens) : null;
+		if (directive == Directive.MACRO) {
+			options.log.println("Nested macro definition on line: \"" + tokens + "\"");
+			return false;
+		}
+		if (directive == Directive.ENDM) {
+			Macro macro = recording;
+			recording = null;
+			if (!add(macro)) {
+				options.log.println("Duplicate macro \"" + macro.name + "\" ending on line: \"" + tokens + "\"");
+				return false;
+			}
+			return true;
+		}
+
+		String[] line = new String[tokens.count() + 1];
+		line[0] = tokens.hasLabel() ? labelName(tokens) : null;
+		for (int i = 0; i < tokens.count(); i++)
+			line[i + 1] = tokens.toString(i);
+		recording.body.add(line);
+		return true;
+	}
+
+	private static String labelName(Lexer tokens) {
+		return tokens.source().subSequence(tokens.labelStart(), tokens.labelEnd()).toString();
+	}
+
+	/**Looks up the macro named by the first token of a lexed line
+	 * @return Matching macro, or null if none matches
+	 */
+	public Macro find(Lexer tokens) {
+		if (tokens.count() == 0 || macros.isEmpty())
+			return null;
+		int index = names.find(tokens.source(), tokens.start(0), tokens.end(0));
+		return index == SymbolTable.MISSING ? null : macros.get(index);
+	}
+
+	/**Expands one invocation into the program image, reusing a cached expansion when there is one
+	 * @param Macro named by the line
+	 * @param Tokens of the invocation line
+	 * @param Program image the encoded words are appended to
+	 * @param Labels of the program
+	 * @param Application options
+	 * @return False if the line could not be assembled
+	 */
+	public boolean expand(Macro macro, Lexer tokens, ProgramImage image, Labels labels, AppOptions options) {
+		boolean labelled = !tokens.hasLabel() || OpCodes.defineLabel(tokens, image, labels, options);
+		if (tokens.count() - 1 != macro.parameters.length) {
+			options.log.println("Macro \"" + macro.name + "\" takes " + macro.parameters.length + " argument(s) on line: \"" + tokens + "\"");
+			return false;
+		}
+
+		int index = cached.find(key(tokens), 0, key.length());
+		Expansion expansion;
+		if (index != SymbolTable.MISSING) {
+			expansion = expansions.get(index);
+		}
+		else {
+			if (depth == MAX_DEPTH) {
+				options.log.println("Macros nested too deeply on line: \"" + tokens + "\"");
+				return false;
+			}
+			String[] arguments = new String[macro.parameters.length];
+			for (int i = 0; i < arguments.length; i++)
+				arguments[i] = tokens.toString(i + 1);
+
+			depth++;
+			expansion = new Expansion(new ProgramImage(macro.body.size()), new Labels(options, true));
+			int errors = encode(macro, arguments, expansion, options);
+			depth--;
+			if (errors > 0) {
+				options.log.println("In expansion of macro \"" + macro.name + "\" on line: \"" + tokens + "\"");
+				labelled = false;
+			}
+			else if (expansions.size() < CACHE_LIMIT) {
+				//Nested expansions reuse the key buffer, so build it again
+				cached.define(key(tokens), 0, key.length(), expansions.size());
+				expansions.add(expansion);
+			}
+		}
+
+		if (options.isDebug) options.log.println("Assert expand " + macro.name);
+		labels.link(expansion.image, expansion.labels, image);
+		return labelled;
+	}
+
+	/**
+	 * @return Cache key of an invocation: the macro name and arguments, separated by NUL
+	 */
+	private StringBuilder key(Lexer tokens) {
+		key.setLength(0);
+		for (int i = 0; i < tokens.count(); i++) {
+			if (i > 0)
+				key.append('\0');
+			key.append(tokens.source(), tokens.start(i), tokens.end(i));
+		}
+		return key;
+	}
+
+	/**Lexes and encodes the body of a macro with its parameters replaced
+	 * @return Number of body lines that could not be assembled
+	 */
+	private int encode(Macro macro, String[] arguments, Expansion expansion, AppOptions options) {
+		Lexer lineTokens = new Lexer();
+		StringBuilder line = new StringBuilder();
+		int errors = 0;
+		for (String[] body : macro.body) {
+			line.setLength(0);
+			if (body[0] != null)
+				line.append(substitute(body[0], macro, arguments)).append(": ");
+			for (int i = 1; i < body.length; i++)
+				line.append(substitute(body[i], macro, arguments)).append(' ');
+			lineTokens.lex(line);
+			if (!Assembler.assembleLine(lineTokens, expansion.image, expansion.labels, this, options))
+				errors++;
+		}
+		return errors;
+	}
+
+	private static String substitute(String token, Macro macro, String[] arguments) {
+		for (int i = 0; i < arguments.length; i++) {
+			if (macro.parameters[i].equals(token))
+				return arguments[i];
+		}
+		return token;
+	}
+
+	/**Reports a definition left open at the end of the source
+	 * @return Number of errors: 1 if a definition is still being recorded, else 0
+	 */
+	public int finish(AppOptions options) {
+		if (recording == null)
+			return 0;
+		options.log.println("Missing .endm for macro \"" + recording.name + "\"");
+		recording = null;
+		return 1;
+	}
+
+	/**Finds the lines of a range of source text which may define macros or include files that do: those whose
+	 * first character other than whitespace is '.'. Reads every byte of the range but keeps no state, so the
+	 * chunks of a parallel job are searched on its worker threads
+	 * @param Buffer holding the source
+	 * @param Offset of the first character of the range, at the start of a line
+	 * @param Offset one past the last character of the range
+	 * @return Offsets of the starts of those lines, in order, followed by -1
+	 */
+	public static int[] directiveLines(CharSequence buffer, int start, int end) {
+		int[] lines = new int[16];
+		int count = 0;
+		for (int lineStart = start; lineStart < end; ) {
+			int i = lineStart;
+			while (i < end && buffer.charAt(i) != '\n' && Character.isWhitespace(buffer.charAt(i)))
+				i++;
+			if (i < end && buffer.charAt(i) == '.') {
+				if (count + 1 == lines.length)
+					lines = Arrays.copyOf(lines, lines.length * 2);
+				lines[count++] = lineStart;
+			}
+			while (i < end && buffer.charAt(i) != '\n')
+				i++;
+			lineStart = i + 1;
+		}
+		lines[count] = -1;
+		return lines;
+	}
+
+	/**Follows the definitions in a range of source text without encoding it, so that the definitions in force
+	 * at the start of each chunk of a parallel job are known before the chunk before it has been encoded
+	 *
+	 * Only the lines found by directiveLines() are lexed, along with the body lines of any definition they open
+	 * or which is still open at the start of the range.
+	 * @param Buffer holding the source
+	 * @param Offset of the first character of the range
+	 * @param Offset one past the last character of the range
+	 * @param Line starts found by directiveLines() for the same range
+	 * @param Application options; diagnostics are left to the encoder
+	 */
+	public void scan(CharSequence buffer, int start, int end, int[] directiveLines, AppOptions options) {
+		Lexer tokens = new Lexer();
+		int next = 0, position = start;
+		while (true) {
+			//Record body lines one by one until the definition ends
+			while (recording != null && position < end)
+				position = lexLine(buffer, position, end, tokens, options) + 1;
+			while (directiveLines[next] >= 0 && directiveLines[next] < position)
+				next++;
+			if (recording != null || directiveLines[next] < 0)
+				return;
+
+			position = lexLine(buffer, directiveLines[next], end, tokens, options) + 1;
+		}
+	}
+
+	/**Lexes one line, recording it into the open definition or following a definition or include on it
+	 * @return Offset of the line's newline, or the end of the range
+	 */
+	private int lexLine(CharSequence buffer, int lineStart, int end, Lexer tokens, AppOptions options) {
+		int lineEnd = lineStart;
+		while (lineEnd < end && buffer.charAt(lineEnd) != '\n')
+			lineEnd++;
+		tokens.lex(buffer, lineStart, lineEnd);
+		//Only definitions, and includes which may bring some in, matter here
+		if (recording != null)
+			record(tokens, options);
+		else if (tokens.count() > 0 && tokens.charAt(0, 0) == '.') {
+			Directive directive = Directive.determine(tokens);
+			if (directive == Directive.MACRO)
+				begin(tokens, options);
+			else if (directive == Directive.INCLUDE)
+				Directive.includeMacros(tokens, this, options);
+		}
+		return lineEnd;
+	}
+}
@@ -0,0 +1,184 @@
+package assembler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**Line cursor over a memory-mapped ASCII source file
+ *
+ * Lines are handed out as byte ranges within the current window rather than as Strings.
+ * A single mapping is limited to 2 GB, so larger files are mapped one window at a time;
+ * each new window starts at the beginning of the line the previous one cut off.
+ *
+ * EX: while (source.nextLine()) tokens.lex(source.buffer(), source.lineStart(), source.lineEnd());
+ */
+public class MappedSource implements Closeable {
+	static final int WINDOW_SIZE = 1 << 30;
+
+	private final FileChannel channel;
+	private final long fileSize;
+	private final int windowSize;
+
+	private long windowOffset;
+	private AsciiBuffer window;
+	private int position, lineStart, lineEnd, chunkStart, chunkEnd;
+	private long lineNumber;
+
+	/**Opens a source file for reading
+	 * @param Path of the source file
+	 */
+	public MappedSource(String fileInput) throws IOException {
+		this(fileInput, WINDOW_SIZE);
+	}
+
+	/**Opens a source file for reading with the given window size
+	 * @param Path of the source file
+	 * @param Largest number of bytes mapped at once
+	 */
+	public MappedSource(String fileInput, int windowSize) throws IOException {
+		this.channel = FileChannel.open(Paths.get(fileInput), StandardOpenOption.READ);
+		this.fileSize = channel.size();
+		this.windowSize = windowSize;
+		map(0);
+	}
+
+	private void map(long offset) throws IOException {
+		MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(windowSize, fileSize - offset));
+		windowOffset = offset;
+		window = new AsciiBuffer(bytes);
+		position = 0;
+	}
+
+	/**Advances to the next line
+	 * @return False once the whole file has been read
+	 */
+	public boolean nextLine() throws IOException {
+		while (true) {
+			int limit = window.length();
+			if (position >= limit && windowOffset + limit >= fileSize)
+				return false;
+
+			int newline = indexOfNewline(position, limit);
+			if (newline >= 0) {
+				lineStart = position;
+				lineEnd = newline;
+				position = newline + 1;
+				lineNumber++;
+				return true;
+			}
+			if (windowOffset + limit >= fileSize) {
+				//Last line without a trailing newline
+				lineStart = position;
+				lineEnd = limit;
+				position = limit;
+				lineNumber++;
+				return true;
+			}
+			if (position == 0)
+				throw new IOException("Line " + (lineNumber + 1) + " is longer than the " + windowSize + " byte mapping window");
+			map(windowOffset + position);
+		}
+	}
+
+	/**Advances to the next run of whole lines, roughly chunkSize bytes long
+	 * 
+	 * Used to split a source into independent pieces of work; a chunk always ends just after a newline
+	 * or at the end of the file. Chunks and lines should not be mixed on the same source.
+	 * @param Preferred chunk size in bytes
+	 * @return False once the whole file has been read
+	 */
+	public boolean nextChunk(int chunkSize) throws IOException {
+		while (true) {
+			int limit = window.length();
+			boolean lastWindow = windowOffset + limit >= fileSize;
+			if (position >= limit && lastWindow)
+				return false;
+
+			if (position < limit) {
+				//Prefer the first newline past the preferred size, else the last whole line in this window
+				int target = position + Math.min(chunkSize, limit - position) - 1;
+				int newline = indexOfNewline(target, limit);
+				if (newline < 0 && !lastWindow)
+					newline = lastIndexOfNewline(position, target);
+				if (newline >= 0) {
+					chunkStart = position;
+					chunkEnd = newline + 1;
+					position = chunkEnd;
+					return true;
+				}
+				if (lastWindow) {
+					chunkStart = position;
+					chunkEnd = limit;
+					position = limit;
+					return true;
+				}
+				if (position == 0)
+					throw new IOException("A line at byte " + windowOffset + " is longer than the " + windowSize + " byte mapping window");
+			}
+			map(windowOffset + position);
+		}
+	}
+
+	private int lastIndexOfNewline(int from, int to) {
+		ByteBuffer bytes = window.bytes();
+		for (int i = to; i >= from; i--) {
+			if (bytes.get(i) == '\n')
+				return i;
+		}
+		return -1;
+	}
+
+	private int indexOfNewline(int from, int limit) {
+		ByteBuffer bytes = window.bytes();
+		for (int i = from; i < limit; i++) {
+			if (bytes.get(i) == '\n')
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Buffer holding the current line or chunk; it stays readable after the cursor moves to a new window,
+	 * so work handed to other threads may keep a reference to it
+	 */
+	public AsciiBuffer buffer() { return window; }
+
+	/**
+	 * @return Offset of the first character of the current line within buffer()
+	 */
+	public int lineStart() { return lineStart; }
+
+	/**
+	 * @return Offset one past the last character of the current line within buffer(), excluding the newline
+	 */
+	public int lineEnd() { return lineEnd; }
+
+	/**
+	 * @return Offset of the first character of the current chunk within buffer()
+	 */
+	public int chunkStart() { return chunkStart; }
+
+	/**
+	 * @return Offset one past the last character of the current chunk within buffer(), including its final newline
+	 */
+	public int chunkEnd() { return chunkEnd; }
+
+	/**
+	 * @return One-based number of the current line
+	 */
+	public long lineNumber() { return lineNumber; }
+
+	/**
+	 * @return Size of the source file in bytes
+	 */
+	public long size() { return fileSize; }
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
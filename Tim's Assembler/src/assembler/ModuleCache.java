@@ -0,0 +1,156 @@
+package assembler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**Process-wide cache of included source files, each lexed and encoded once
+ *
+ * Modules are keyed by canonical path, and reused for as long as the file keeps the size and modification time
+ * it had when it was encoded. A module is encoded on its own from address 0 with deferred labels, so the same
+ * words fit anywhere: the includer appends them and links the module's labels at their new address. Macros the
+ * module defines are added to the includer's; a module only sees the macros it defines or includes itself.
+ * Diagnostics are kept as text and repeated to every includer.
+ *
+ * Different modules load concurrently; a thread asking for a module another thread is loading waits for it.
+ * Includes which form a cycle would then wait on each other forever, even when the files of the cycle are
+ * loaded by different threads, so every wait is recorded in one wait-for graph: the thread encoding each
+ * module, and the module each thread waits for. A thread which would wait on a chain leading back to itself
+ * fails the include instead.
+ */
+public class ModuleCache {
+	/**Encoded words, deferred labels, macros and diagnostics of one source file
+	 */
+	static class Module {
+		final long size, modified;
+		final ProgramImage image;
+		final Labels labels;
+		final Macros macros;
+		final int errors;
+		final String diagnostics;
+
+		Module(long size, long modified, ProgramImage image, Labels labels, Macros macros, int errors, String diagnostics) {
+			this.size = size;
+			this.modified = modified;
+			this.image = image;
+			this.labels = labels;
+			this.macros = macros;
+			this.errors = errors;
+			this.diagnostics = diagnostics;
+		}
+	}
+
+	private static final ConcurrentHashMap<String, FutureTask<Module>> modules = new ConcurrentHashMap<>();
+
+	/**
+	 * Thread encoding each module, and module each thread waits for; both guarded by owners
+	 */
+	private static final Map<String, Thread> owners = new HashMap<>();
+	private static final Map<Thread, String> waits = new HashMap<>();
+
+	/**Returns the cached module for a file, encoding it first if it is new or has changed
+	 * @param Path of the source file
+	 * @return Module encoded from the file's current contents
+	 */
+	static Module load(Path file) throws IOException {
+		Path path = file.toRealPath();
+		String key = path.toString();
+
+		while (true) {
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			long size = attributes.size(), modified = attributes.lastModifiedTime().toMillis();
+
+			FutureTask<Module> task = modules.get(key);
+			if (task == null) {
+				FutureTask<Module> fresh = new FutureTask<>(() -> encode(path, size, modified));
+				synchronized (owners) {
+					task = modules.putIfAbsent(key, fresh);
+					if (task == null)
+						owners.put(key, Thread.currentThread());
+				}
+				if (task == null) {
+					task = fresh;
+					try {
+						fresh.run();
+					}
+					finally {
+						synchronized (owners) {
+							owners.remove(key);
+						}
+					}
+				}
+			}
+
+			Module module = await(key, task);
+			if (module.size == size && module.modified == modified)
+				return module;
+			//The file changed since it was cached, so drop the stale module and encode it again
+			modules.remove(key, task);
+		}
+	}
+
+	/**Waits for a module to be encoded, unless waiting would close a cycle of includes
+	 */
+	private static Module await(String key, FutureTask<Module> task) throws IOException {
+		Thread current = Thread.currentThread();
+		if (!task.isDone()) {
+			synchronized (owners) {
+				//Follow the threads encoding each module waited for; reaching this thread again means a cycle
+				for (String waited = key; waited != null; ) {
+					Thread owner = owners.get(waited);
+					if (owner == current)
+						throw new IOException("Include cycle through '" + waited + "'");
+					waited = owner == null ? null : waits.get(owner);
+				}
+				waits.put(current, key);
+			}
+		}
+		try {
+			return task.get();
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for '" + key + "'");
+		}
+		catch (ExecutionException ex) {
+			//Leave failures out of the cache, so a later include tries again
+			modules.remove(key, task);
+			if (ex.getCause() instanceof IOException)
+				throw (IOException) ex.getCause();
+			throw new IOException(ex.getCause());
+		}
+		finally {
+			synchronized (owners) {
+				waits.remove(current);
+			}
+		}
+	}
+
+	private static Module encode(Path path, long size, long modified) throws IOException {
+		byte[] source = Files.readAllBytes(path);
+		ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+		AppOptions options = new AppOptions(path.toString(), null, false, false, false);
+		options.log = new PrintStream(diagnostics, true, "US-ASCII");
+
+		ProgramImage image = new ProgramImage(source.length / 8);
+		Labels labels = new Labels(options, true);
+		Macros macros = new Macros();
+		int errors = Assembler.encodeLines(new AsciiBuffer(ByteBuffer.wrap(source)), 0, source.length, image, labels, macros, options);
+		errors += macros.finish(options);
+
+		String text = diagnostics.toString("US-ASCII");
+		if (!text.isEmpty())
+			text = "In included file '" + path + "':\n" + text;
+		return new Module(size, modified, image, labels, macros, errors, text);
+	}
+}
@@ -0,0 +1,150 @@
+package assembler;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**Relocatable object file: the encoded words of one source, the labels it defines and the words naming labels
+ *
+ * A source is compiled on its own from address 0 with deferred labels (see Labels), so every payload naming a
+ * label is left as 0000 and recorded as a relocation against that name; literal hex payloads are absolute
+ * addresses and need none. Linking appends each object's words in the order given and replays its labels at
+ * its new address, so link time grows with the number of words, labels and relocations, and no source line is
+ * lexed again. Macros are a source-level feature and are not kept in objects. Words after an .org keep their
+ * absolute address, and so do the labels defined and named there.
+ *
+ * Layout, all ints big-endian:
+ *   "TIMO", format version
+ *   word count, words
+ *   origin count, then (index of the first word placed, address) per origin
+ *   byte length and UTF-8 bytes of the label name pool
+ *   definition count, then (name start, name end, address) per definition
+ *   relocation count, then (name start, name end, address of the word to patch) per relocation
+ * Name offsets count chars of the decoded pool. Addresses are relative to the object's first word, or the
+ * complement (~address) of an absolute one.
+ */
+public class ObjectFile {
+	static final int MAGIC = 0x54494D4F, VERSION = 2;
+
+	final ProgramImage image;
+	final Labels labels;
+
+	ObjectFile(ProgramImage image, Labels labels) {
+		this.image = image;
+		this.labels = labels;
+	}
+
+	/**Assembles the input file named in the options into an object file at the output path
+	 * @param Application options naming the input and output files
+	 * @return Number of lines that could not be assembled; no object is written if there are any
+	 */
+	public static int compile(AppOptions options) throws IOException {
+		byte[] source = Files.readAllBytes(Paths.get(options.fileInput));
+		ProgramImage image = new ProgramImage(source.length / 8);
+		Labels labels = new Labels(options, true);
+		Macros macros = new Macros();
+		int errors = Assembler.encodeLines(new AsciiBuffer(ByteBuffer.wrap(source)), 0, source.length, image, labels, macros, options);
+		errors += macros.finish(options);
+
+		if (errors == 0)
+			new ObjectFile(image, labels).write(Paths.get(options.fileOutput));
+		return errors;
+	}
+
+	/**Links object files into one image at the output path, in the order given
+	 * @param Application options naming the objects, separated by commas, and the output file
+	 * @return Number of duplicate, undefined or out of range labels
+	 */
+	public static int link(AppOptions options) throws IOException {
+		ProgramImage image = new ProgramImage(Assembler.FLUSH_WORDS);
+		Labels labels = new Labels(options);
+
+		try (ImageWriter out = ImageWriter.open(options)) {
+			for (String name : options.link.split(",")) {
+				if (name.trim().isEmpty())
+					continue;
+				ObjectFile object = read(Paths.get(name.trim()), options);
+				labels.link(object.image, object.labels, image);
+				Assembler.drain(image, out, labels, Assembler.FLUSH_WORDS);
+			}
+			int errors = labels.finish();
+			Assembler.drain(image, out, labels, 0);
+			return errors + Assembler.pad(image, out, options);
+		}
+	}
+
+	/**Writes this object to a file, replacing it
+	 * @param Path of the object file
+	 */
+	void write(Path file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(image.size());
+			int[] words = image.words();
+			for (int i = 0; i < image.size(); i++)
+				out.writeInt(words[i]);
+			out.writeInt(image.origins());
+			for (int i = 0; i < image.origins(); i++) {
+				out.writeInt(image.originIndex(i));
+				out.writeInt(image.originAddress(i));
+			}
+			labels.write(out);
+		}
+	}
+
+	/**Reads an object file written by write()
+	 * @param Path of the object file
+	 * @param Application options; diagnostics of the labels go to options.log
+	 * @return Words and deferred labels of the object
+	 */
+	static ObjectFile read(Path file, AppOptions options) throws IOException {
+		return read(ByteBuffer.wrap(Files.readAllBytes(file)), file, options);
+	}
+
+	/**Reads an object held in a buffer, such as a memory-mapped cache entry
+	 * @param Buffer positioned at the start of the object
+	 * @param Path the object came from, for diagnostics
+	 * @param Application options; diagnostics of the labels go to options.log
+	 * @return Words and deferred labels of the object
+	 */
+	static ObjectFile read(ByteBuffer in, Path file, AppOptions options) throws IOException {
+		try {
+			if (in.getInt() != MAGIC)
+				throw new IOException("'" + file + "' is not an object file");
+			if (in.getInt() != VERSION)
+				throw new IOException("'" + file + "' has an unsupported object format version");
+
+			int count = in.getInt();
+			if (count < 0 || count > in.remaining() / 4)
+				throw new IOException("Corrupt object file '" + file + "'");
+			int[] words = new int[count];
+			in.asIntBuffer().get(words);
+			in.position(in.position() + count * 4);
+			ProgramImage image = new ProgramImage(count);
+			int origins = in.getInt(), at = 0;
+			if (origins < 0 || origins > in.remaining() / 8)
+				throw new IOException("Corrupt object file '" + file + "'");
+			for (int i = 0; i < origins; i++) {
+				int index = in.getInt(), address = in.getInt();
+				if (index < at || index > count)
+					throw new IOException("Corrupt object file '" + file + "'");
+				image.addAll(words, at, index - at);
+				at = index;
+				if (!image.org(address))
+					throw new IOException("Corrupt object file '" + file + "'");
+			}
+			image.addAll(words, at, count - at);
+
+			return new ObjectFile(image, Labels.read(in, count, options));
+		}
+		catch (BufferUnderflowException ex) {
+			throw new IOException("Truncated object file '" + file + "'");
+		}
+	}
+}
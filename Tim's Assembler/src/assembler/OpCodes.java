@@ -24,7 +24,7 @@ public enum OpCodes {
 	 * EX: JMP 1234   > 1F001234
 	 * Jumps to (hex) address "1234"
 	 */
-	JMP ('1', "JMP"),
+	JMP ('1', "JMP", 1),
     
 	/**
      * Conditional JMP
@@ -37,7 +37,7 @@ public enum OpCodes {
      * EX: JMZ D,9 10F0 > 2FD910F0
 	 * Compares the values in registers D and 9; if they are equal, then jumps to (hex) address 10F0
      */
-	JMZ ('2', "JMZ"),
+	JMZ ('2', "JMZ", 3),
     
 	/**
      * Conditional JMP
@@ -48,7 +48,7 @@ public enum OpCodes {
      * 
      * Functionally identical to JMZ
      */    
-	JNG ('3', "JNG"),
+	JNG ('3', "JNG", 3),
     
 	/**
 	 * Arithmetic Operation
@@ -61,28 +61,28 @@ public enum OpCodes {
 	 * Adds the values in VAL(register F) and register 3, stores the result in register 2
 	 * Adds the values in registers D and 3, stores the result in register 2
 	 */
-    ADD ('4', "ADD"),
+    ADD ('4', "ADD", 3),
     
     /**
      * Arithmetic Operation
      * 
      * Functionally identical to ADD
      */
-    SUB ('5', "SUB"),
+    SUB ('5', "SUB", 3),
     
     /**
      * Arithmetic Operation
      * 
      * Functionally identical to ADD
      */
-    MUL ('6', "SUB"),
+    MUL ('6', "MUL", 3),
     
     /**
      * Arithmetic Operation
      * 
      * Functionally identical to ADD
      */
-    DIV ('7', "DIV"),
+    DIV ('7', "DIV", 3),
     
     /**
      * Writes data into memory
@@ -96,7 +96,7 @@ public enum OpCodes {
 	 * EX: WTR F B 0110 > 80FB0110
 	 * Writes the data in VAL (register F) to register B
      */
-    WTR ('8', "WTR"),
+    WTR ('8', "WTR", 2),
     
     /**
      * Inputs item from keyboard into register
@@ -104,7 +104,7 @@ public enum OpCodes {
      * EX: INP A > 9A000000
 	 * Inputs keyboard input into register A
      */
-    INP ('9', "INP"),
+    INP ('9', "INP", 1),
     
     /**
      * Write one pixel
@@ -117,12 +117,12 @@ public enum OpCodes {
      * EX: WOP A,B 0000 > A0AB0000
 	 * Writes 1 pixel to screen
      */
-    WOP ('A', "WOP"),
+    WOP ('A', "WOP", 2),
     
     /**
      * Reset screen
      */
-    RES ('B', "RES"),
+    RES ('B', "RES", 0),
     
     /**
      * Immediate register load
@@ -133,7 +133,7 @@ public enum OpCodes {
      * EX: LDI 3 1234 > C3001234
 	 * Loads (hex) value "1234" into register 3
      */
-    LDI ('C', "LDI"),
+    LDI ('C', "LDI", 2),
 	
 	/**
 	 * Direct register load
@@ -148,19 +148,24 @@ public enum OpCodes {
 	 * EX: LDR F A 0110 > DAF00110
 	 * Loads data from memory address 0110 (register F) and stores in register A
 	 */
-	LDR ('D', "LDR"),
+	LDR ('D', "LDR", 2),
 	
 	/**
 	 * OpCodes case for when a line is commented out
 	 */
-	COMMENT ('\00', "");
+	COMMENT ('\00', "", 0);
 	
     public final char hexCode;
     public final String stringValue;
+    /**
+     * Number of operands required, not counting the optional VAL payload
+     */
+    public final int operands;
     
-    OpCodes(char hexCode, String stringValue) {
+    OpCodes(char hexCode, String stringValue, int operands) {
         this.hexCode = hexCode;
         this.stringValue = stringValue;
+        this.operands = operands;
     }
     /**
      * @return Hex value of opcode
@@ -172,33 +177,120 @@ public enum OpCodes {
      */
     private String stringValue() { return stringValue; }
     
-    public static OpCodes fromName(String name) {
-        for (OpCodes f : values()) {
-            if (f.stringValue().equalsIgnoreCase(name)) {
-                return f;
-            }
+    /**
+     * Open-addressing dispatch table keyed on the three mnemonic characters packed into an int
+     */
+    private static final int TABLE_BITS = 6;
+    private static final int[] tableKeys = new int[1 << TABLE_BITS];
+    private static final OpCodes[] tableCodes = new OpCodes[1 << TABLE_BITS];
+    
+    /**Formats the operands of one opcode family, for the disassembler
+     */
+    private interface Formatter {
+        /**
+         * @param Encoded word
+         * @param Buffer the operands are written to, after the mnemonic and a space
+         * @param Index in the buffer to write at
+         * @param True to write a jump's payload as the label of its target
+         * @return Index after the operands, or -1 if the word sets bits the family's syntax cannot express
+         */
+        int format(int word, char[] buffer, int at, boolean label);
+    }
+    
+    /**
+     * Reverse dispatch table: opcode and operand formatter for each value of a word's top nibble, null where
+     * no opcode is defined
+     */
+    private static final OpCodes[] codeTable = new OpCodes[16];
+    private static final Formatter[] formatterTable = new Formatter[16];
+    
+    static {
+        for (OpCodes opcode : values()) {
+            if (opcode == COMMENT)
+                continue;
+            int key = packMnemonic(opcode.stringValue, 0);
+            int slot = slot(key);
+            while (tableCodes[slot] != null)
+                slot = (slot + 1) & (tableCodes.length - 1);
+            tableKeys[slot] = key;
+            tableCodes[slot] = opcode;
+            
+            int code = hexDigit(opcode.hexCode);
+            codeTable[code] = opcode;
+            formatterTable[code] = formatter(opcode);
+        }
+    }
+    
+    /**Packs three characters into one int, folding lowercase letters to uppercase arithmetically
+     * @param Buffer holding the mnemonic
+     * @param Offset of the first mnemonic character
+     * @return Packed key, or -1 if any character is outside ASCII
+     */
+    static int packMnemonic(CharSequence source, int start) {
+        char c0 = source.charAt(start), c1 = source.charAt(start + 1), c2 = source.charAt(start + 2);
+        if ((c0 | c1 | c2) >= 0x80)
+            return -1;
+        return (c0 & 0x5F) << 16 | (c1 & 0x5F) << 8 | (c2 & 0x5F);
+    }
+    
+    private static int slot(int key) {
+        return (key * 0x9E3779B1) >>> (32 - TABLE_BITS);
+    }
+    
+    /**Looks up the opcode whose mnemonic is the three characters at the given offset
+     * @param Buffer holding the mnemonic
+     * @param Offset of the first mnemonic character
+     * @return Matching opcode, or null if none matches
+     */
+    private static OpCodes lookup(CharSequence source, int start) {
+        int key = packMnemonic(source, start);
+        if (key < 0)
+            return null;
+        int slot = slot(key);
+        OpCodes opcode;
+        while ((opcode = tableCodes[slot]) != null) {
+            if (tableKeys[slot] == key)
+                return opcode;
+            slot = (slot + 1) & (tableCodes.length - 1);
         }
         return null;
     }
     
+    public static OpCodes fromName(String name) {
+        if (name.isEmpty())
+            return COMMENT;
+        if (name.length() != 3)
+            return null;
+        return lookup(name, 0);
+    }
+    
     /**Determines proper opcode for output formatting
      * @param One line of assembly input
      * @return Correct instance of opcode
      */
 	public static OpCodes determineCode(String line) {
-		//Iterate through all possible OpCode values in OpCodes enum
-		
-		for (OpCodes opcode: OpCodes.values()) {
-			if (line.toUpperCase().startsWith(opcode.toString()))
-				return opcode;
-		}
-		
-		return null;
+		if (line.length() < 3)
+			return null;
+		return lookup(line, 0);
+	}
+	
+	/**Determines proper opcode from the mnemonic token of a lexed line
+	 * @param Tokens of one line of assembly input
+	 * @return Correct instance of opcode, COMMENT for an empty or commented line
+	 */
+	public static OpCodes determineCode(Lexer tokens) {
+		if (tokens.count() == 0)
+			return COMMENT;
+		if (tokens.length(0) != 3)
+			return null;
+		return lookup(tokens.source(), tokens.start(0));
 	}
 	
 	/**Interprets assembly language code into machine code
-	 * @param Alphanumeric assembly code
-	 * @return Hex machine code equivalent
+	 * @param Tokens of one line of alphanumeric assembly code
+	 * @param Program image the encoded machine code word is appended to
+	 * @param Labels of the program, which a payload may name instead of a hex value; null allows no labels
+	 * @return False if the line could not be assembled
 	 * EX: LDI 3 1234 > C3001234
 	 * Loads (hex) value "1234" into register 3
 	 * 
@@ -227,220 +319,382 @@ public enum OpCodes {
 	 * 
 	 * EX: LDR F A 0110 > DAF00110
 	 * Loads data from memory address 0110 (register F) and stores in register A
+	 * 
+	 * EX: JMP loop > 1F00xxxx
+	 * Jumps to the address of the word following "loop:"
 	 */
-	public static String interpretForward(String line, StringBuilder resultBuilder, OpCodes opcode, AppOptions options) {
+	public static boolean interpretForward(Lexer tokens, ProgramImage image, Labels labels, OpCodes opcode, AppOptions options) {
+		//A label marks the address of the word this line encodes to, or of the next word if it encodes none
+		boolean labelled = !tokens.hasLabel() || defineLabel(tokens, image, labels, options);
+		if (opcode == COMMENT) {
+			//Skip commented or empty line
+			if (options.isDebug) options.log.println("Assert skip COMMENT");
+			return labelled;
+		}
+		if (opcode == null || tokens.count() - 1 < opcode.operands) {
+			options.log.println("Error parsing assembly on line: \"" + tokens + "\"");
+			return false;
+		}
+		
+		//Operands follow the mnemonic; a token past the required operands is the VAL payload
+		boolean hasPayload = tokens.count() - 1 > opcode.operands;
+		int nreg = 0, r2 = 0, r1 = 0, payload = 0, payloadToken = 0;
 		switch (opcode) {
 		case JMP: 
-			resultBuilder.append(String.valueOf(OpCodes.JMP.hexCode));
-			resultBuilder.append("F00");
-			resultBuilder.append(line.substring(Math.max(0, line.length() - 4))); //Last four characters
-			resultBuilder.append('\n');
-			if (options.isDebug) System.out.println("Assert format JMP");
-			if (options.isVerbose) System.out.println("Appended string: " + resultBuilder.substring(resultBuilder.length()-9, resultBuilder.length()));
+			//EX: JMP 1234   > 1F001234
+			nreg = 0xF;
+			payloadToken = 1;
 			break;
 		case JMZ: 
-			resultBuilder.append(String.valueOf(OpCodes.JMZ.hexCode));
-			resultBuilder.append('F');
-			resultBuilder.append(line.charAt(line.indexOf(',') - 1));
-			resultBuilder.append(line.charAt(line.indexOf(',') + 1));
-			resultBuilder.append(line.substring(Math.max(0, line.length() - 4))); //Last four characters
-			//resultBuilder.append(line.substring(line.lastIndexOf(' '), line.lastIndexOf(' ') + 4)); //Four characters after last space
-			resultBuilder.append('\n');
-			if (options.isDebug) System.out.println("Assert format JMZ");
-			if (options.isVerbose) System.out.println("Appended string: " + resultBuilder.substring(resultBuilder.length()-9, resultBuilder.length()));
-			break;
 		case JNG:
-			resultBuilder.append(String.valueOf(OpCodes.JNG.hexCode));
-			resultBuilder.append(line.charAt(line.indexOf(',') - 1));
-			resultBuilder.append(line.charAt(line.indexOf(',') + 1));
-			resultBuilder.append(line.substring(Math.max(0, line.length() - 4))); //Last four characters
-			//resultBuilder.append(line.substring(line.lastIndexOf(' '), line.lastIndexOf(' ') + 4)); //Four characters after last space
-			resultBuilder.append('\n');
+			//EX: JMZ D,9 10F0 > 2FD910F0
+			nreg = 0xF;
+			r2 = register(tokens, 1);
+			r1 = register(tokens, 2);
+			payloadToken = 3;
 			break;
 		case LDI:
-			//EX: LDI 3 1234 > C3001234    Loads (hex) value "1234" into register 3
-			resultBuilder.append(OpCodes.LDI.hexCode);
-			resultBuilder.append(line.charAt(line.indexOf(' ')+1));
-			resultBuilder.append("00");
-			resultBuilder.append(line.substring(Math.max(0, line.length() - 4))); //Last four characters
-			//resultBuilder.append(line.substring(line.lastIndexOf(' '), line.lastIndexOf(' ') + 4)); //Four characters after last space
-			resultBuilder.append('\n');
-			if (options.isDebug) System.out.println("Assert format LDI");
-			if (options.isVerbose) System.out.println("Appended string: " + resultBuilder.substring(resultBuilder.length()-9, resultBuilder.length()));
+			//EX: LDI 3 1234 > C3001234
+			nreg = register(tokens, 1);
+			payloadToken = 2;
 			break;
 		case ADD:
-			//EX: ADD F,3 2 0001 > 42F30001
-			//EX: ADD D,3 2 > 42D30000
-			resultBuilder.append(String.valueOf(OpCodes.ADD.hexCode));
-			if (line.toUpperCase().contains("F")) {
-				//Hacky method to get the 2 in between 2 spaces
-				resultBuilder.append(line.substring(line.indexOf(' '), line.lastIndexOf(' '))
-						.charAt(line.substring(line.indexOf(' '), line.lastIndexOf(' ')).lastIndexOf(' ')+1));		
-				resultBuilder.append(line.charAt(line.indexOf(',') - 1));
-				resultBuilder.append(line.charAt(line.indexOf(',') + 1));
-				resultBuilder.append(line.substring(Math.max(0, line.length() - 4))); //Four characters after last space
-			}
-			else {
-				resultBuilder.append(line.charAt(line.length()-1)); // Last character
-				resultBuilder.append(line.charAt(line.indexOf(',') - 1));
-				resultBuilder.append(line.charAt(line.indexOf(',') + 1));
-				resultBuilder.append("0000");
-			}
-			resultBuilder.append('\n');
-			if (options.isDebug) System.out.println("Assert format ADD");
-			if (options.isVerbose) System.out.println("Appended string: " + resultBuilder.substring(resultBuilder.length()-9, resultBuilder.length()));
-			break;
 		case SUB:
-			resultBuilder.append(String.valueOf(OpCodes.SUB.hexCode));
-			if (line.toUpperCase().contains("F")) {
-				//Hacky method to get the 2 in between 2 spaces
-				resultBuilder.append(line.substring(line.indexOf(' '), line.lastIndexOf(' '))
-						.charAt(line.substring(line.indexOf(' '), line.lastIndexOf(' ')).lastIndexOf(' ')+1));		
-				resultBuilder.append(line.charAt(line.indexOf(',') - 1));
-				resultBuilder.append(line.charAt(line.indexOf(',') + 1));
-				resultBuilder.append(line.substring(Math.max(0, line.length() - 4))); //Four characters after last space
-			}
-			else {
-				resultBuilder.append(line.charAt(line.length()-1)); // Last character
-				resultBuilder.append(line.charAt(line.indexOf(',') - 1));
-				resultBuilder.append(line.charAt(line.indexOf(',') + 1));
-				resultBuilder.append("0000");
-			}
-			resultBuilder.append('\n');
-			if (options.isDebug) System.out.println("Assert format SUB");
-			if (options.isVerbose) System.out.println("Appended string: " + resultBuilder.substring(resultBuilder.length()-9, resultBuilder.length()));
-			break;
 		case MUL:
-			resultBuilder.append(String.valueOf(OpCodes.MUL.hexCode));
-			if (line.toUpperCase().contains("F")) {
-				//Hacky method to get the 2 in between 2 spaces
-				resultBuilder.append(line.substring(line.indexOf(' '), line.lastIndexOf(' '))
-						.charAt(line.substring(line.indexOf(' '), line.lastIndexOf(' ')).lastIndexOf(' ')+1));		
-				resultBuilder.append(line.charAt(line.indexOf(',') - 1));
-				resultBuilder.append(line.charAt(line.indexOf(',') + 1));
-				resultBuilder.append(line.substring(Math.max(0, line.length() - 4))); //Four characters after last space
-			}
-			else {
-				resultBuilder.append(line.charAt(line.length()-1)); // Last character
-				resultBuilder.append(line.charAt(line.indexOf(',') - 1));
-				resultBuilder.append(line.charAt(line.indexOf(',') + 1));
-				resultBuilder.append("0000");
-			}
-			resultBuilder.append('\n');
-			if (options.isDebug) System.out.println("Assert format MUL");
-			if (options.isVerbose) System.out.println("Appended string: " + resultBuilder.substring(resultBuilder.length()-9, resultBuilder.length()));
-			break;
 		case DIV:
-			resultBuilder.append(String.valueOf(OpCodes.DIV.hexCode));
-			if (line.toUpperCase().contains("F")) {
-				//Hacky method to get the 2 in between 2 spaces
-				resultBuilder.append(line.substring(line.indexOf(' '), line.lastIndexOf(' '))
-						.charAt(line.substring(line.indexOf(' '), line.lastIndexOf(' ')).lastIndexOf(' ')+1));		
-				resultBuilder.append(line.charAt(line.indexOf(',') - 1));
-				resultBuilder.append(line.charAt(line.indexOf(',') + 1));
-				resultBuilder.append(line.substring(Math.max(0, line.length() - 4))); //Four characters after last space
-			}
-			else {
-				resultBuilder.append(line.charAt(line.length()-1)); // Last character
-				resultBuilder.append(line.charAt(line.indexOf(',') - 1));
-				resultBuilder.append(line.charAt(line.indexOf(',') + 1));
-				resultBuilder.append("0000");
-			}
-			resultBuilder.append('\n');
-			if (options.isDebug) System.out.println("Assert format DIV");
-			if (options.isVerbose) System.out.println("Appended string: " + resultBuilder.substring(resultBuilder.length()-9, resultBuilder.length()));
+			//EX: ADD F,3 2 0001 > 42F30001
+			//EX: ADD D,3 2 > 42D30000
+			nreg = register(tokens, 3);
+			r2 = register(tokens, 1);
+			r1 = register(tokens, 2);
+			if (hasPayload) payloadToken = 4;
 			break;
 		case WTR:
-			resultBuilder.append(String.valueOf(OpCodes.WTR.hexCode));
-			if (line.toUpperCase().contains("F")) {
-				resultBuilder.append('0');
-				resultBuilder.append(line.charAt(line.indexOf(' ')+1));
-				//Hacky method to get the 2 in between 2 spaces
-				resultBuilder.append(line.substring(line.indexOf(' '), line.lastIndexOf(' '))
-						.charAt(line.substring(line.indexOf(' '), line.lastIndexOf(' ')).lastIndexOf(' ')+1));		
-				resultBuilder.append(line.substring(Math.max(0, line.length() - 4))); //Four characters after last space
-			}
-			else {
-				resultBuilder.append('0');
-				resultBuilder.append(line.charAt(line.indexOf(' ') + 1));
-				resultBuilder.append(line.charAt(line.lastIndexOf(' ') + 1)); //Character after last space
-				//resultBuilder.append(line.charAt(line.length()-1)); Alternatively use the last character
-				resultBuilder.append("0000");
-			}
-			resultBuilder.append('\n');
-			if (options.isDebug) System.out.println("Assert format WTR");
-			if (options.isVerbose) System.out.println("Appended string: " + resultBuilder.substring(resultBuilder.length()-9, resultBuilder.length()));
-			break;
 		case WOP:
-			resultBuilder.append(String.valueOf(OpCodes.WOP.hexCode));
-			if (line.toUpperCase().contains("F")) {
-				resultBuilder.append('0');	
-				resultBuilder.append(line.charAt(line.indexOf(',') - 1));
-				resultBuilder.append(line.charAt(line.indexOf(',') + 1));
-				resultBuilder.append(line.substring(Math.max(0, line.length() - 4))); //Four characters after last space
-			}
-			else {
-				resultBuilder.append('0');
-				resultBuilder.append(line.charAt(line.indexOf(',')-1));
-				resultBuilder.append(line.charAt(line.indexOf(',')+1));
-				resultBuilder.append("0000");
-			}
-			resultBuilder.append('\n');
-			if (options.isDebug) System.out.println("Assert format WOP");
-			if (options.isVerbose) System.out.println("Appended string: " + resultBuilder.substring(resultBuilder.length()-9, resultBuilder.length()));
+			//EX: WTR F B 0110 > 80FB0110
+			//EX: WOP A,B > A0AB0000
+			r2 = register(tokens, 1);
+			r1 = register(tokens, 2);
+			if (hasPayload) payloadToken = 3;
 			break;
 		case INP:
-			resultBuilder.append(String.valueOf(OpCodes.INP.hexCode));
-			resultBuilder.append(line.charAt(line.indexOf(' ')+1));
-			resultBuilder.append("000000");
-			resultBuilder.append('\n');
-			if (options.isDebug) System.out.println("Assert format INP");
-			if (options.isVerbose) System.out.println("Appended string: " + resultBuilder.substring(resultBuilder.length()-9, resultBuilder.length()));
+			//EX: INP A > 9A000000
+			nreg = register(tokens, 1);
 			break;
 		case RES:
-			resultBuilder.append(String.valueOf(OpCodes.RES.hexCode));
-			resultBuilder.append("0000000");
-			resultBuilder.append('\n');
-			if (options.isDebug) System.out.println("Assert format RES");
-			if (options.isVerbose) System.out.println("Appended string: " + resultBuilder.substring(resultBuilder.length()-9, resultBuilder.length()));
 			break;
 		case LDR:
-			resultBuilder.append(String.valueOf(OpCodes.LDR.hexCode));
-			if (line.toUpperCase().contains("F")) {
-				//Hacky method to get the 2 in between 2 spaces
-				resultBuilder.append(line.substring(line.indexOf(' '), line.lastIndexOf(' '))
-						.charAt(line.substring(line.indexOf(' '), line.lastIndexOf(' ')).lastIndexOf(' ')+1));	
-				resultBuilder.append(line.charAt(line.indexOf(' ')+1));
-				resultBuilder.append('0');
-				resultBuilder.append(line.substring(Math.max(0, line.length() - 4))); //Four characters after last space
-			}
-			else {
-				resultBuilder.append(line.charAt(line.length()-1)); // Last character
-				resultBuilder.append(line.charAt(line.indexOf(' ')+1));
-				resultBuilder.append("00000");
-			}
-			resultBuilder.append('\n');
-			if (options.isDebug) System.out.println("Assert format LDR");
-			if (options.isVerbose) System.out.println("Appended string: " + resultBuilder.substring(resultBuilder.length()-9, resultBuilder.length()));
-			break;
-		case COMMENT:
-			//Skip commented line
-			if (options.isDebug) System.out.println("Assert skip COMMENT");
-			if (options.isVerbose) System.out.println("Skipped commented line: " + line);
+			//EX: LDR D A > DAD00000
+			//EX: LDR F A 0110 > DAF00110
+			nreg = register(tokens, 2);
+			r2 = register(tokens, 1);
+			if (hasPayload) payloadToken = 3;
 			break;
 		default:
-			System.out.println("Error parsing assembly on line: \"" + line + "\"");
-			break;
+			options.log.println("Error parsing assembly on line: \"" + tokens + "\"");
+			return false;
+		}
+		//Past the operands only the optional payload may follow, and only in the families which have one
+		if (tokens.count() - 1 > Math.max(opcode.operands, payloadToken)) {
+			options.log.println("Error parsing assembly on line: \"" + tokens + "\"");
+			return false;
+		}
+		if (payloadToken > 0)
+			payload = payload(tokens, payloadToken, labels);
+		
+		//A label defined further down is encoded as 0000 and patched once it is defined
+		boolean pending = payload == PENDING;
+		if (pending)
+			payload = 0;
+		if ((nreg | r2 | r1 | payload) < 0) {
+			if (payload == UNDEFINED)
+				options.log.println("Undefined label on line: \"" + tokens + "\"");
+			else if (payload == OUT_OF_RANGE)
+				options.log.println("Label address out of range on line: \"" + tokens + "\"");
+			else
+				options.log.println("Error parsing assembly on line: \"" + tokens + "\"");
+			return false;
 		}
-		return resultBuilder.toString().toUpperCase();
+		
+		int word = pack(opcode, nreg, r2, r1, payload);
+		if (pending)
+			labels.reference(tokens.source(), tokens.start(payloadToken), tokens.end(payloadToken), image.address(), image);
+		image.add(word);
+		if (options.isDebug) options.log.println("Assert format " + opcode);
+		if (options.isVerbose) options.log.println("Appended word: " + String.format("%08X", word));
+		return labelled;
+	}
+	
+	/**Defines the label of a lexed line at the address of the next word
+	 * @return False if the label name is invalid or already defined
+	 */
+	static boolean defineLabel(Lexer tokens, ProgramImage image, Labels labels, AppOptions options) {
+		if (!isLabelName(tokens.source(), tokens.labelStart(), tokens.labelEnd())) {
+			options.log.println("Invalid label name on line: \"" + tokens + "\"");
+			return false;
+		}
+		if (labels != null && !labels.define(tokens.source(), tokens.labelStart(), tokens.labelEnd(), image.address(), image)) {
+			options.log.println("Duplicate label on line: \"" + tokens + "\"");
+			return false;
+		}
+		return true;
 	}
 	
+	/**Packs the fields of one instruction into a 32-bit word
+	 * @param Opcode, character 1
+	 * @param Register input select (NReg), character 2
+	 * @param Register R2 output select, character 3
+	 * @param Register R1 output select, character 4
+	 * @param Payload data, characters 5-8
+	 * @return Encoded instruction word
+	 */
+	public static int pack(OpCodes opcode, int nreg, int r2, int r1, int payload) {
+		return hexDigit(opcode.hexCode) << 28 | nreg << 24 | r2 << 20 | r1 << 16 | payload;
+	}
+	
+	/**
+	 * @return Value of a hex digit character, or -1 if it is not one
+	 */
+	static int hexDigit(char c) {
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		c |= 0x20;
+		if (c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		return -1;
+	}
+	
+	/**Reads a single register select operand
+	 * @param Tokens of the current line
+	 * @param Index of the register operand
+	 * @return Register number, or -1 if the operand is not a single hex digit
+	 */
+	private static int register(Lexer tokens, int token) {
+		if (tokens.length(token) != 1)
+			return -1;
+		return hexDigit(tokens.charAt(token, 0));
+	}
+	
+	/**
+	 * Values returned by payload in place of a 16-bit payload; PENDING names a label not defined yet
+	 */
+	private static final int INVALID = -1, UNDEFINED = -2, OUT_OF_RANGE = -3, PENDING = -4;
+	
+	/**Reads the VAL payload, taking the last four hex digits of the token, or the address of the label it names
+	 * @param Tokens of the current line
+	 * @param Index of the payload operand
+	 * @param Labels of the program, or null
+	 * @return 16-bit payload, or INVALID, UNDEFINED, OUT_OF_RANGE or PENDING
+	 */
+	private static int payload(Lexer tokens, int token, Labels labels) {
+		int length = tokens.length(token);
+		int value = 0;
+		for (int i = 0; i < length; i++) {
+			int digit = hexDigit(tokens.charAt(token, i));
+			if (digit < 0)
+				return label(tokens, token, labels);
+			value = value << 4 | digit;
+		}
+		return value & 0xFFFF;
+	}
+	
+	/**Resolves a payload operand naming a label
+	 * @return Address of the label, or UNDEFINED, OUT_OF_RANGE or PENDING
+	 */
+	private static int label(Lexer tokens, int token, Labels labels) {
+		if (labels == null)
+			return UNDEFINED;
+		int address = labels.find(tokens.source(), tokens.start(token), tokens.end(token));
+		if (address == SymbolTable.MISSING)
+			return PENDING;
+		return address > 0xFFFF ? OUT_OF_RANGE : address;
+	}
+	
+	/**Checks that a name can be used as a label: it must not read as a hex payload
+	 * @param Buffer holding the name
+	 * @param Offset of the first character of the name
+	 * @param Offset one past the last character of the name
+	 * @return True if the name holds at least one character which is not a hex digit
+	 */
+	static boolean isLabelName(CharSequence source, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (hexDigit(source.charAt(i)) < 0)
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Longest line interpretReverse writes, such as "ADD F,F F FFFF", "JMZ D,9 L10F0" or ".word FFFFFFFF"
+	 */
+	static final int MAX_REVERSE_LENGTH = 14;
+	
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+	private static final char[] WORD_DIRECTIVE = ".word ".toCharArray();
+	
 	/**Interprets machine code into assembly language
-	 * @param Hex machine code equivalent
-	 * @return Alphanumeric assembly code
+	 * 
+	 * The top nibble picks the opcode and the formatter of its family from a table; the other fields are
+	 * taken out with shifts and masks. A word the syntax cannot express, because its opcode is undefined or it
+	 * sets fields its family does not use, is written as a .word directive so that it still assembles back.
+	 * @param Encoded machine code word
+	 * @param Buffer the line is written to, without a line break; MAX_REVERSE_LENGTH chars from the index
+	 * @param Index in the buffer to write at
+	 * @return Index after the line
+	 * EX: C3001234 > LDI 3 1234
+	 * EX: 2FD910F0 > JMZ D,9 10F0
+	 * EX: 00000000 > .word 00000000
+	 */
+	public static int interpretReverse(int word, char[] buffer, int at) {
+		return interpretReverse(word, buffer, at, false);
+	}
+	
+	/**Interprets machine code into assembly language, naming the target of a jump by its label
+	 * @param Encoded machine code word
+	 * @param Buffer the line is written to, without a line break; MAX_REVERSE_LENGTH chars from the index
+	 * @param Index in the buffer to write at
+	 * @param True to write the payload of a jump as "L" and the four hex digits of its target
+	 * @return Index after the line
+	 * EX: 2FD910F0 > JMZ D,9 L10F0
+	 */
+	public static int interpretReverse(int word, char[] buffer, int at, boolean label) {
+		int code = word >>> 28;
+		OpCodes opcode = codeTable[code];
+		if (opcode != null) {
+			String name = opcode.stringValue;
+			buffer[at] = name.charAt(0);
+			buffer[at + 1] = name.charAt(1);
+			buffer[at + 2] = name.charAt(2);
+			buffer[at + 3] = ' ';
+			int end = formatterTable[code].format(word, buffer, at + 4, label);
+			if (end >= 0)
+				return end;
+		}
+		System.arraycopy(WORD_DIRECTIVE, 0, buffer, at, WORD_DIRECTIVE.length);
+		at += WORD_DIRECTIVE.length;
+		for (int shift = 28; shift >= 0; shift -= 4)
+			buffer[at++] = HEX_DIGITS[(word >>> shift) & 0xF];
+		return at;
+	}
+	
+	/**
+	 * @return Operand formatter of the family an opcode belongs to; mirrors the cases of interpretForward
+	 */
+	private static Formatter formatter(OpCodes opcode) {
+		switch (opcode) {
+		case JMP:
+			//EX: 1F001234 > JMP 1234
+			return (word, buffer, at, label) -> nreg(word) != 0xF || (word & 0x00FF0000) != 0 ? -1 : target(word, buffer, at, label);
+		case JMZ:
+		case JNG:
+			//EX: 2FD910F0 > JMZ D,9 10F0
+			return (word, buffer, at, label) -> {
+				if (nreg(word) != 0xF)
+					return -1;
+				at = registers(word, ',', buffer, at);
+				buffer[at++] = ' ';
+				return target(word, buffer, at, label);
+			};
+		case ADD:
+		case SUB:
+		case MUL:
+		case DIV:
+			//EX: 42F30001 > ADD F,3 2 0001
+			return (word, buffer, at, label) -> {
+				at = registers(word, ',', buffer, at);
+				buffer[at++] = ' ';
+				buffer[at++] = HEX_DIGITS[nreg(word)];
+				return optionalPayload(word, buffer, at);
+			};
+		case WTR:
+		case WOP:
+			//EX: 80FB0110 > WTR F B 0110
+			char separator = opcode == WOP ? ',' : ' ';
+			return (word, buffer, at, label) -> nreg(word) != 0 ? -1 : optionalPayload(word, buffer, registers(word, separator, buffer, at));
+		case INP:
+			//EX: 9A000000 > INP A
+			return (word, buffer, at, label) -> {
+				if ((word & 0x00FFFFFF) != 0)
+					return -1;
+				buffer[at++] = HEX_DIGITS[nreg(word)];
+				return at;
+			};
+		case RES:
+			//EX: B0000000 > RES; the space after the mnemonic is dropped
+			return (word, buffer, at, label) -> (word & 0x0FFFFFFF) != 0 ? -1 : at - 1;
+		case LDI:
+			//EX: C3001234 > LDI 3 1234
+			return (word, buffer, at, label) -> {
+				if ((word & 0x00FF0000) != 0)
+					return -1;
+				buffer[at++] = HEX_DIGITS[nreg(word)];
+				buffer[at++] = ' ';
+				return payload(word, buffer, at);
+			};
+		default:
+			//EX: DAF00110 > LDR F A 0110
+			return (word, buffer, at, label) -> {
+				if ((word & 0x000F0000) != 0)
+					return -1;
+				buffer[at++] = HEX_DIGITS[(word >>> 20) & 0xF];
+				buffer[at++] = ' ';
+				buffer[at++] = HEX_DIGITS[nreg(word)];
+				return optionalPayload(word, buffer, at);
+			};
+		}
+	}
+	
+	/**
+	 * @return Payload of a word interpretReverse writes as JMP, JMZ or JNG, or -1 for any other word
+	 */
+	static int jumpTarget(int word) {
+		switch (word >>> 28) {
+		case 0x1:
+			return (word & 0x0FFF0000) == 0x0F000000 ? word & 0xFFFF : -1;
+		case 0x2:
+		case 0x3:
+			return nreg(word) == 0xF ? word & 0xFFFF : -1;
+		default:
+			return -1;
+		}
+	}
+	
+	/**
+	 * @return Register input select (NReg), character 2 of a word
+	 */
+	private static int nreg(int word) { return (word >>> 24) & 0xF; }
+	
+	/**Writes the R2 and R1 register selects, characters 3 and 4
+	 */
+	private static int registers(int word, char separator, char[] buffer, int at) {
+		buffer[at] = HEX_DIGITS[(word >>> 20) & 0xF];
+		buffer[at + 1] = separator;
+		buffer[at + 2] = HEX_DIGITS[(word >>> 16) & 0xF];
+		return at + 3;
+	}
+	
+	/**Writes the payload as four hex digits
+	 */
+	private static int payload(int word, char[] buffer, int at) {
+		for (int shift = 12; shift >= 0; shift -= 4)
+			buffer[at++] = HEX_DIGITS[(word >>> shift) & 0xF];
+		return at;
+	}
+	
+	/**Writes the payload of a jump, as four hex digits or as the label of its target
+	 */
+	private static int target(int word, char[] buffer, int at, boolean label) {
+		if (label)
+			buffer[at++] = 'L';
+		return payload(word, buffer, at);
+	}
+	
+	/**Writes a space and the payload, unless the payload is 0000, which the assembler fills in when it is left out
 	 */
-	public static String interpretReverse(String line, StringBuilder resultBuilder, OpCodes opcode, AppOptions options) {
-		//TODO Complete (This is going to a maze of if-statements that I don't want to deal with...)
-		return null;
+	private static int optionalPayload(int word, char[] buffer, int at) {
+		if ((word & 0xFFFF) == 0)
+			return at;
+		buffer[at++] = ' ';
+		return payload(word, buffer, at);
 	}
 }
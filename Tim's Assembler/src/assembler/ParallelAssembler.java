@@ -0,0 +1,144 @@
+package assembler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**Assembles a memory-mapped source on several threads
+ *
+ * Every line is encoded independently, so the source is cut into line-aligned chunks which are encoded into
+ * their own program images on a ForkJoinPool. Images are written out in chunk order, so the output is
+ * byte-identical to single-threaded assembly. Only a few chunks per thread are in flight at once,
+ * which keeps memory bounded however large the source is.
+ *
+ * A chunk cannot know the labels of the chunks before it, so it encodes every label reference as 0000 and
+ * only records its definitions and references (see Labels). The writer links each chunk's labels in order as
+ * it appends the chunk's words to the job's image, patching them the same way a single-threaded run would.
+ *
+ * Macro definitions must be known before a chunk is encoded, so the submitting thread follows them with
+ * Macros.scan and hands each chunk the definitions in force at its start. Finding the lines which may hold
+ * definitions means reading every byte, so that part runs on the pool too (see Macros.directiveLines), a few
+ * chunks ahead of the chunks being encoded; the submitting thread only lexes those lines and macro bodies.
+ */
+public class ParallelAssembler {
+	/**
+	 * Preferred number of source bytes per chunk
+	 */
+	static final int CHUNK_SIZE = 1 << 20;
+
+	/**
+	 * Number of chunks queued per thread ahead of the one being written out
+	 */
+	static final int CHUNKS_PER_THREAD = 2;
+
+	/**A chunk cut from the source, while a worker finds its directive lines
+	 */
+	static class Range {
+		final CharSequence buffer;
+		final int start, end;
+		final ForkJoinTask<int[]> directiveLines;
+
+		Range(CharSequence buffer, int start, int end, ForkJoinTask<int[]> directiveLines) {
+			this.buffer = buffer;
+			this.start = start;
+			this.end = end;
+			this.directiveLines = directiveLines;
+		}
+	}
+
+	/**Encoded words and deferred labels of one chunk
+	 */
+	static class Chunk {
+		final ProgramImage image;
+		final Labels labels;
+
+		Chunk(ProgramImage image, Labels labels) {
+			this.image = image;
+			this.labels = labels;
+		}
+	}
+
+	/**Assembles the input file into the output file using options.threads worker threads
+	 * @param Application options naming the input and output files
+	 * @return Number of lines that could not be assembled
+	 */
+	public static int assemble(AppOptions options) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(options.threads);
+		AtomicInteger errors = new AtomicInteger();
+		ArrayDeque<Range> ranges = new ArrayDeque<>();
+		ArrayDeque<ForkJoinTask<Chunk>> inFlight = new ArrayDeque<>();
+		ProgramImage image = new ProgramImage(Assembler.FLUSH_WORDS);
+		Labels labels = new Labels(options);
+		Macros macros = new Macros();
+		AppOptions quiet = new AppOptions(options.fileInput, null, false, false, false);
+		quiet.log = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) { }
+		});
+
+		try (MappedSource source = new MappedSource(options.fileInput);
+			ImageWriter out = ImageWriter.open(options)){
+			//Cuts chunks a few ahead of the one whose definitions are followed, so workers find their directive lines first
+			int ahead = options.threads * CHUNKS_PER_THREAD;
+			boolean cutting = true;
+			while (true) {
+				if (cutting && (cutting = source.nextChunk(CHUNK_SIZE))) {
+					CharSequence buffer = source.buffer();
+					int start = source.chunkStart(), end = source.chunkEnd();
+					ranges.add(new Range(buffer, start, end, pool.submit(() -> Macros.directiveLines(buffer, start, end))));
+					if (ranges.size() < ahead)
+						continue;
+				}
+				Range range = ranges.poll();
+				if (range == null)
+					break;
+
+				Macros chunkMacros = macros.snapshot();
+				macros.scan(range.buffer, range.start, range.end, range.directiveLines.join(), quiet);
+				inFlight.add(pool.submit(() -> encodeChunk(range.buffer, range.start, range.end, chunkMacros, options, errors)));
+
+				if (inFlight.size() >= ahead)
+					write(inFlight.poll(), image, labels, out);
+			}
+			while (!inFlight.isEmpty())
+				write(inFlight.poll(), image, labels, out);
+
+			errors.addAndGet(macros.finish(options));
+			errors.addAndGet(labels.finish());
+			Assembler.drain(image, out, labels, 0);
+			errors.addAndGet(Assembler.pad(image, out, options));
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		return errors.get();
+	}
+
+	/**Appends the next chunk in order to the job's image, links its labels and writes out whatever is final
+	 */
+	private static void write(ForkJoinTask<Chunk> task, ProgramImage image, Labels labels, ImageWriter out) throws IOException {
+		Chunk chunk = task.join();
+		labels.link(chunk.image, chunk.labels, image);
+		Assembler.drain(image, out, labels, Assembler.FLUSH_WORDS);
+	}
+
+	/**Encodes every line in one chunk of source
+	 * @param Buffer holding the chunk
+	 * @param Offset of the first character of the chunk
+	 * @param Offset one past the last character of the chunk
+	 * @param Macros defined before the chunk
+	 * @param Application options
+	 * @param Counter of lines that could not be assembled
+	 * @return Encoded words of the chunk, in source order, with its deferred labels
+	 */
+	static Chunk encodeChunk(CharSequence buffer, int start, int end, Macros macros, AppOptions options, AtomicInteger errors) {
+		ProgramImage image = new ProgramImage((end - start) / 8);
+		Labels labels = new Labels(options, true);
+		errors.addAndGet(Assembler.encodeLines(buffer, start, end, image, labels, macros, options));
+		return new Chunk(image, labels);
+	}
+}
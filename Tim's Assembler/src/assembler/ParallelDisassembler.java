@@ -0,0 +1,185 @@
+package assembler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**Disassembles a memory-mapped image on several threads
+ *
+ * Every word is disassembled independently, except that jump targets are labelled, so the image is cut into
+ * chunks and disassembled in two parallel passes. The first scans every chunk, counting its words and adding
+ * its jump targets to one shared JumpTargets; the address of each chunk's first word then follows from the
+ * counts of the chunks before it. The second formats chunks into their own buffers on a ForkJoinPool, and they
+ * are written out in chunk order, so the output is byte-identical to single-threaded disassembly. Only a few
+ * chunks per thread are formatted ahead of the one being written, which keeps memory bounded.
+ *
+ * A "v2.0 raw" image is cut into line-aligned chunks, packed words into chunks of CHUNK_WORDS words. A chunk
+ * whose runs expand to more than MAX_BUFFERED_WORDS words is not buffered, but formatted by the writing thread
+ * straight into the output when its turn comes.
+ */
+public class ParallelDisassembler {
+	/**
+	 * Preferred number of bytes of image text per chunk
+	 */
+	static final int CHUNK_SIZE = 1 << 20;
+
+	/**
+	 * Number of packed words per chunk
+	 */
+	static final int CHUNK_WORDS = 1 << 17;
+
+	/**
+	 * Most words a chunk formats into its own buffer
+	 */
+	static final long MAX_BUFFERED_WORDS = 1 << 18;
+
+	/**
+	 * Number of chunks formatted per thread ahead of the one being written out
+	 */
+	static final int CHUNKS_PER_THREAD = 2;
+
+	/**One range of the image, and once formatted, its listing and diagnostics
+	 */
+	static class Chunk {
+		final ByteBuffer bytes;
+		final int start, end;
+		long address, words;
+		ByteArrayOutputStream listing;
+		String diagnostics;
+		int errors;
+		ForkJoinTask<Chunk> task;
+
+		Chunk(ByteBuffer bytes, int start, int end) {
+			this.bytes = bytes;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	/**Disassembles the input file into the output file using options.threads worker threads
+	 * @param Application options naming the input and output files and the image format
+	 * @return Number of lines or partial words which are not part of an image
+	 */
+	public static int disassemble(AppOptions options) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(options.threads);
+		JumpTargets targets = new JumpTargets();
+		int errors = 0;
+
+		try (FileChannel input = FileChannel.open(Paths.get(options.fileInput), StandardOpenOption.READ);
+			MappedSource source = options.format == ImageWriter.Format.BIN ? null : new MappedSource(options.fileInput);
+			FileChannel output = FileChannel.open(Paths.get(options.fileOutput),
+					StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			List<Chunk> chunks = split(input, source, options);
+
+			List<ForkJoinTask<Chunk>> scans = new ArrayList<>(chunks.size());
+			for (Chunk chunk : chunks)
+				scans.add(pool.submit(() -> scan(chunk, targets, options)));
+			long address = 0;
+			for (int i = 0; i < chunks.size(); i++) {
+				scans.get(i).join();
+				chunks.get(i).address = address;
+				address += chunks.get(i).words;
+			}
+			targets.limit(address);
+			scans.clear();
+
+			//Formats a few chunks ahead of the one being written, each into its own buffer
+			int next = 0;
+			for (int i = 0; i < chunks.size(); i++) {
+				for (; next < chunks.size() && next < i + options.threads * CHUNKS_PER_THREAD; next++) {
+					Chunk ahead = chunks.get(next);
+					if (ahead.words <= MAX_BUFFERED_WORDS)
+						ahead.task = pool.submit(() -> format(ahead, targets, options));
+				}
+				Chunk chunk = chunks.get(i);
+				if (chunk.task == null) {
+					//Too long to hold in memory, so format it straight into the output
+					Disassembler out = new Disassembler(output, targets, chunk.address);
+					errors += feed(chunk, out, options.log, options);
+					out.flush();
+					continue;
+				}
+				chunk.task.join();
+				chunk.listing.writeTo(Channels.newOutputStream(output));
+				options.log.print(chunk.diagnostics);
+				errors += chunk.errors;
+				chunks.set(i, null);
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		return errors;
+	}
+
+	/**Cuts the input into chunks
+	 * @param Channel of the input file, for packed words
+	 * @param Line cursor over the input file, for image text; null for packed words
+	 */
+	private static List<Chunk> split(FileChannel input, MappedSource source, AppOptions options) throws IOException {
+		List<Chunk> chunks = new ArrayList<>();
+		if (source != null) {
+			while (source.nextChunk(CHUNK_SIZE))
+				chunks.add(new Chunk(source.buffer().bytes(), source.chunkStart(), source.chunkEnd()));
+			return chunks;
+		}
+
+		long size = input.size(), window = MappedSource.WINDOW_SIZE;
+		for (long offset = 0; offset < size; offset += window) {
+			ByteBuffer words = input.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(window, size - offset));
+			for (int start = 0; start < words.limit(); start += CHUNK_WORDS * 4)
+				chunks.add(new Chunk(words, start, Math.min(words.limit(), start + CHUNK_WORDS * 4)));
+		}
+		return chunks;
+	}
+
+	/**Counts the words of a chunk and adds its jump targets
+	 */
+	private static Chunk scan(Chunk chunk, JumpTargets targets, AppOptions options) throws IOException {
+		Disassembler scan = new Disassembler(targets);
+		feed(chunk, scan, null, options);
+		chunk.words = scan.address();
+		return chunk;
+	}
+
+	/**Formats a chunk into its own buffer, keeping its diagnostics to print in order
+	 */
+	private static Chunk format(Chunk chunk, JumpTargets targets, AppOptions options) throws IOException {
+		chunk.listing = new ByteArrayOutputStream((int) chunk.words * 12 + 64);
+		ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+		PrintStream log = printStream(diagnostics);
+		try (Disassembler out = new Disassembler(Channels.newChannel(chunk.listing), targets, chunk.address)) {
+			chunk.errors = feed(chunk, out, log, options);
+		}
+		chunk.diagnostics = diagnostics.toString("US-ASCII");
+		return chunk;
+	}
+
+	private static PrintStream printStream(ByteArrayOutputStream bytes) {
+		try {
+			return new PrintStream(bytes, true, "US-ASCII");
+		}
+		catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**Feeds the words of one chunk to a disassembler
+	 * @return Number of lines or partial words which are not part of an image
+	 */
+	private static int feed(Chunk chunk, Disassembler out, PrintStream log, AppOptions options) throws IOException {
+		ByteBuffer bytes = chunk.bytes.duplicate();
+		bytes.limit(chunk.end).position(chunk.start);
+		return Assembler.disassemble(bytes.slice(), out, log, options);
+	}
+}
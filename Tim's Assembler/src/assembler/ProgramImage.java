@@ -0,0 +1,274 @@
+package assembler;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**Growable buffer of encoded 32-bit LogiTim words
+ *
+ * This is the assembler's internal representation of a program: each instruction is packed into one int
+ * (see OpCodes.pack) and stored in a primitive array, so later passes work on plain ints and text or binary
+ * formats are only produced by the output stage.
+ *
+ * Words written out may be discarded from the front of the image while encoding goes on; base() then gives
+ * the program address following the last word written, so fixups can still be patched by address.
+ *
+ * The image is sparse: org() places the following words at a higher address without storing the gap, so memory
+ * grows with the code, not with the address range it spans. Each origin is kept as the index of the first word
+ * it places and that word's address; writeTo() turns the gaps back into fill. Origins always move forward, so
+ * addresses grow with indices. In an image encoded on its own (see Labels), words before the first origin have
+ * addresses relative to wherever the image is appended, and words after it have absolute addresses.
+ *
+ * Words written out while the writer holds them (see ImageWriter.hold) can still be patched: the patches are
+ * queued as address and payload pairs, and writePatches() passes them on to the writer.
+ */
+public class ProgramImage {
+	private int[] words;
+	private int size, base;
+	private int[] originIndex = new int[0], originAddress = new int[0];
+	private int origins;
+	private boolean held;
+	private int[] patches = new int[0];
+	private int patchInts;
+
+	public ProgramImage() {
+		this(1024);
+	}
+
+	/**
+	 * @param Initial capacity in words
+	 */
+	public ProgramImage(int capacity) {
+		words = new int[Math.max(capacity, 16)];
+	}
+
+	/**Appends one word to the end of the image
+	 * @param Encoded instruction word
+	 */
+	public void add(int word) {
+		if (size == words.length)
+			words = Arrays.copyOf(words, size + (size >> 1));
+		words[size++] = word;
+	}
+
+	/**
+	 * @return Word at the given index
+	 */
+	public int get(int index) {
+		if (index >= size)
+			throw new IndexOutOfBoundsException("Index " + index + " outside image of " + size + " words");
+		return words[index];
+	}
+
+	/**Replaces the word at the given index
+	 */
+	public void set(int index, int word) {
+		if (index >= size)
+			throw new IndexOutOfBoundsException("Index " + index + " outside image of " + size + " words");
+		words[index] = word;
+	}
+
+	/**Appends every word of another image, along with its origins
+	 * @return False if an origin of the other image falls below the words before it, and was dropped
+	 */
+	public boolean addAll(ProgramImage other) {
+		int at = 0;
+		boolean placed = true;
+		for (int i = 0; i < other.origins; i++) {
+			addAll(other.words, at, other.originIndex[i] - at);
+			at = other.originIndex[i];
+			placed &= org(other.originAddress[i]);
+		}
+		addAll(other.words, at, other.size - at);
+		return placed;
+	}
+
+	/**Appends a run of encoded words
+	 * @param Array holding the words
+	 * @param Index of the first word to append
+	 * @param Number of words to append
+	 */
+	public void addAll(int[] source, int offset, int length) {
+		if (size + length > words.length)
+			words = Arrays.copyOf(words, Math.max(size + length, size + (size >> 1)));
+		System.arraycopy(source, offset, words, size, length);
+		size += length;
+	}
+
+	/**Places the words added next from the given address, leaving a gap of fill words before them
+	 * @param Program address of the next word
+	 * @return False if the address is below the next free one; nothing changes then
+	 */
+	public boolean org(int address) {
+		if (address < address())
+			return false;
+		if (origins > 0 && originIndex[origins - 1] == size) {
+			originAddress[origins - 1] = address;
+			return true;
+		}
+		if (origins == originIndex.length) {
+			originIndex = Arrays.copyOf(originIndex, Math.max(4, origins * 2));
+			originAddress = Arrays.copyOf(originAddress, originIndex.length);
+		}
+		originIndex[origins] = size;
+		originAddress[origins] = address;
+		origins++;
+		return true;
+	}
+
+	/**
+	 * @return True once org() has placed words at an absolute address
+	 */
+	public boolean hasOrigin() { return origins > 0; }
+
+	/**
+	 * @return Index of the word at a program address, or of the word that would follow it in a gap; size() for
+	 * any address past the last word held
+	 */
+	public int indexOf(int address) {
+		//Find the last origin at or below the address; addresses grow with indices
+		int low = 0, high = origins - 1, start = base, index = 0;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (originAddress[middle] <= address) {
+				start = originAddress[middle];
+				index = originIndex[middle];
+				low = middle + 1;
+			}
+			else
+				high = middle - 1;
+		}
+		int limit = low < origins ? originIndex[low] : size;
+		return (int) Math.max(index, Math.min(limit, (long) index + address - start));
+	}
+
+	/**Replaces the payload of the word at a program address, leaving its upper 16 bits alone
+	 * @param Program address of a word still held in the image, or written out while the writer holds it
+	 * @param 16-bit payload
+	 */
+	public void patch(int address, int payload) {
+		if (held && address < base) {
+			if (patchInts == patches.length)
+				patches = Arrays.copyOf(patches, Math.max(16, patchInts * 2));
+			patches[patchInts++] = address;
+			patches[patchInts++] = payload;
+			return;
+		}
+		int index = indexOf(address);
+		if (address < base || index >= size || addressOf(index) != address)
+			throw new IndexOutOfBoundsException("Address " + address + " outside image held from " + base);
+		words[index] = words[index] & 0xFFFF0000 | payload;
+	}
+
+	/**Lets patch() reach the words written out from here on, while the writer holds them
+	 * @param True once the writer holds the words written, false once it has released them
+	 */
+	void hold(boolean held) { this.held = held; }
+
+	/**
+	 * @return True while patches to words written out are queued for the writer
+	 */
+	boolean isHeld() { return held; }
+
+	/**Passes the patches queued for words written out on to the writer holding them
+	 * @param Output image writer
+	 */
+	void writePatches(ImageWriter out) throws IOException {
+		for (int i = 0; i < patchInts; i += 2)
+			out.patch(patches[i], patches[i + 1]);
+		patchInts = 0;
+	}
+
+	/**
+	 * @return Program address of the word at an index, which may be size()
+	 */
+	private int addressOf(int index) {
+		int start = base, at = 0;
+		for (int i = 0; i < origins && originIndex[i] <= index; i++) {
+			start = originAddress[i];
+			at = originIndex[i];
+		}
+		return start + index - at;
+	}
+
+	/**Writes words from the front of the image, with fill words for the gaps before and between them
+	 * @param Output image writer
+	 * @param Number of words to write
+	 */
+	public void writeTo(ImageWriter out, int count) throws IOException {
+		int at = 0, address = base;
+		for (int i = 0; i < origins && originIndex[i] < count; i++) {
+			out.write(words, at, originIndex[i] - at);
+			address += originIndex[i] - at;
+			out.fill(originAddress[i] - address);
+			address = originAddress[i];
+			at = originIndex[i];
+		}
+		out.write(words, at, count - at);
+	}
+
+	/**Drops words from the front of the image, once they have been written out
+	 * @param Number of words to drop
+	 */
+	public void discard(int count) {
+		//An origin placing the first word still held stays, as its gap is not written out yet
+		int dropped = 0, next = base + count;
+		while (dropped < origins && originIndex[dropped] < count) {
+			next = originAddress[dropped] + count - originIndex[dropped];
+			dropped++;
+		}
+		System.arraycopy(words, count, words, 0, size - count);
+		size -= count;
+		System.arraycopy(originIndex, dropped, originIndex, 0, origins - dropped);
+		System.arraycopy(originAddress, dropped, originAddress, 0, origins - dropped);
+		origins -= dropped;
+		for (int i = 0; i < origins; i++)
+			originIndex[i] -= count;
+		base = next;
+	}
+
+	/**
+	 * @return Number of origins, for writing the image out as an object file
+	 */
+	int origins() { return origins; }
+
+	/**
+	 * @return Index of the first word placed by an origin
+	 */
+	int originIndex(int origin) { return originIndex[origin]; }
+
+	/**
+	 * @return Program address of the first word placed by an origin
+	 */
+	int originAddress(int origin) { return originAddress[origin]; }
+
+	/**
+	 * @return Number of words in the image
+	 */
+	public int size() { return size; }
+
+	/**
+	 * @return Program address following the last word written out
+	 */
+	public int base() { return base; }
+
+	/**
+	 * @return Program address the next word added will get
+	 */
+	public int address() {
+		return origins == 0 ? base + size : originAddress[origins - 1] + size - originIndex[origins - 1];
+	}
+
+	/**
+	 * @return Backing array; only the first size() entries are valid
+	 */
+	public int[] words() { return words; }
+
+	/**Empties the image, keeping its capacity for reuse, and starts addresses again from 0
+	 */
+	public void clear() { size = 0; base = 0; origins = 0; held = false; patchInts = 0; }
+
+	/**
+	 * @return Copy of the valid words
+	 */
+	public int[] toArray() { return Arrays.copyOf(words, size); }
+}
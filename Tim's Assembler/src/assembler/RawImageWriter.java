@@ -0,0 +1,174 @@
+package assembler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**Streams a Logisim "v2.0 raw" image to a file or other channel
+ *
+ * Encoded words are formatted into a fixed-size buffer which is flushed to the channel whenever it fills,
+ * so memory use stays the same no matter how large the program is.
+ * Assembly output is pure ASCII, so characters are narrowed straight to bytes.
+ *
+ * A run of at least MIN_RUN equal words is written as one "count*word" line, with the count in decimal,
+ * which Logisim's loader expands again. The current run is held back until a different word or close() ends it.
+ *
+ * EX: 0000 0000 0000 0000 0000 C3001234 > "5*00000000" "C3001234"
+ */
+public class RawImageWriter implements ImageWriter {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Shortest run written as "count*word"; shorter runs take about as many bytes either way
+	 */
+	static final int MIN_RUN = 4;
+
+	/**
+	 * Most bytes one run can format into: three plain words, or a ten digit count, '*', a word and '\n'
+	 */
+	private static final int RUN_BYTES = 27;
+	private static final byte[] HEX_DIGITS = {
+		'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+	};
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final byte[] staging = new byte[9 * 1024];
+	private int runWord, runLength;
+
+	/**Opens the output file, truncating it, and writes the image header
+	 * @param Path of the output file
+	 */
+	public RawImageWriter(String fileOutput) throws IOException {
+		this(FileChannel.open(Paths.get(fileOutput),
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+	}
+
+	/**Writes the image header to an already open channel
+	 * @param Channel the image is written to; closed along with this writer
+	 */
+	public RawImageWriter(WritableByteChannel channel) throws IOException {
+		this.channel = channel;
+		append("v2.0 raw\n");
+	}
+
+	/**Writes one encoded word as eight hex digits on its own line, or adds it to the current run
+	 * @param Encoded instruction word
+	 */
+	@Override
+	public void write(int word) throws IOException {
+		if (runLength > 0 && word == runWord) {
+			runLength++;
+			return;
+		}
+		endRun();
+		runWord = word;
+		runLength = 1;
+	}
+
+	/**Writes a run of encoded words
+	 * @param Array holding the words
+	 * @param Index of the first word to write
+	 * @param Number of words to write
+	 */
+	@Override
+	public void write(int[] words, int offset, int length) throws IOException {
+		//Format runs into the staging array as they end, then copy it into the buffer in one go once full
+		int p = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int word = words[i];
+			if (runLength > 0 && word == runWord) {
+				runLength++;
+				continue;
+			}
+			if (p > staging.length - RUN_BYTES) {
+				put(p);
+				p = 0;
+			}
+			p = formatRun(p);
+			runWord = word;
+			runLength = 1;
+		}
+		put(p);
+	}
+
+	/**Writes a gap as zero words, which join the current run
+	 */
+	@Override
+	public void fill(int count) throws IOException {
+		if (count <= 0)
+			return;
+		if (runLength > 0 && runWord != 0)
+			endRun();
+		runWord = 0;
+		runLength += count;
+	}
+
+	/**Formats the current run into the staging array and starts none
+	 * @param Index in the staging array to format at
+	 * @return Index after the formatted run
+	 */
+	private int formatRun(int p) {
+		if (runLength >= MIN_RUN) {
+			String count = Integer.toString(runLength);
+			for (int i = 0; i < count.length(); i++)
+				staging[p++] = (byte) count.charAt(i);
+			staging[p++] = '*';
+			runLength = 1;
+		}
+		for (; runLength > 0; runLength--) {
+			for (int shift = 28; shift >= 0; shift -= 4)
+				staging[p++] = HEX_DIGITS[(runWord >>> shift) & 0xF];
+			staging[p++] = '\n';
+		}
+		return p;
+	}
+
+	private void put(int length) throws IOException {
+		if (buffer.remaining() < length)
+			flush();
+		buffer.put(staging, 0, length);
+	}
+
+	/**Writes out the run held back, if any
+	 */
+	private void endRun() throws IOException {
+		if (runLength > 0)
+			put(formatRun(0));
+	}
+
+	/**Appends already formatted output
+	 * @param ASCII text to write
+	 */
+	public void append(CharSequence text) throws IOException {
+		endRun();
+		for (int i = 0; i < text.length(); i++) {
+			if (!buffer.hasRemaining())
+				flush();
+			buffer.put((byte) text.charAt(i));
+		}
+	}
+
+	/**Writes everything buffered so far to the file
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			endRun();
+			flush();
+		}
+		finally {
+			channel.close();
+		}
+	}
+}
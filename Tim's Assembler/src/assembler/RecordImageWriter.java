@@ -0,0 +1,151 @@
+package assembler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**Common part of the text formats which carry an image as checksummed records of hex bytes, such as Intel HEX
+ *
+ * Words are split into bytes, in the chosen byte order, and gathered into one data record of RECORD_BYTES
+ * bytes; a full record is formatted straight into the output buffer, so memory use is one record and one
+ * buffer however large the image is. Each byte is added to the record's checksum as it is formatted.
+ * Record addresses count bytes, four per word. A gap ends the current record, and the next one simply starts
+ * at the address after the gap, so gaps take no space in the file.
+ */
+abstract class RecordImageWriter implements ImageWriter {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Data bytes per record; a multiple of 4, so records hold whole words
+	 */
+	static final int RECORD_BYTES = 16;
+
+	private static final byte[] HEX_DIGITS = {
+		'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+	};
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final boolean isLittleEndian;
+	/**
+	 * Mask of the address bits a record may not carry into, or 0 if records may cross any address
+	 */
+	private final long boundary;
+	private final byte[] record = new byte[RECORD_BYTES];
+	private int length, checksum;
+	/**
+	 * Byte address of the first byte of the current record
+	 */
+	private long address;
+
+	/**
+	 * @param Channel the image is written to; closed along with this writer
+	 * @param True to split each word into bytes lowest first
+	 * @param Mask of the address bits a record may not carry into, or 0 if records may cross any address
+	 */
+	RecordImageWriter(WritableByteChannel channel, boolean isLittleEndian, long boundary) {
+		this.channel = channel;
+		this.isLittleEndian = isLittleEndian;
+		this.boundary = boundary;
+	}
+
+	@Override
+	public void write(int word) throws IOException {
+		if (isLittleEndian)
+			word = Integer.reverseBytes(word);
+		record[length] = (byte) (word >>> 24);
+		record[length + 1] = (byte) (word >>> 16);
+		record[length + 2] = (byte) (word >>> 8);
+		record[length + 3] = (byte) word;
+		length += 4;
+		if (length == RECORD_BYTES || (boundary != 0 && ((address + length) & boundary) == 0))
+			endRecord();
+	}
+
+	@Override
+	public void write(int[] words, int offset, int length) throws IOException {
+		for (int i = offset; i < offset + length; i++)
+			write(words[i]);
+	}
+
+	@Override
+	public void fill(int count) throws IOException {
+		endRecord();
+		address += count * 4L;
+	}
+
+	/**Formats the bytes gathered so far as one data record
+	 */
+	private void endRecord() throws IOException {
+		if (length == 0)
+			return;
+		writeData(address, record, length);
+		address += length;
+		length = 0;
+	}
+
+	/**Formats one data record
+	 * @param Byte address of the first byte
+	 * @param Array holding the bytes
+	 * @param Number of bytes, at most RECORD_BYTES
+	 */
+	abstract void writeData(long address, byte[] data, int length) throws IOException;
+
+	/**Formats the records ending the file
+	 */
+	abstract void writeEnd() throws IOException;
+
+	/**Starts a record line and its checksum
+	 * @param Characters starting the line, such as ":" or "S1"
+	 */
+	void begin(String start) throws IOException {
+		//The longest record line is well under 128 bytes
+		if (buffer.remaining() < 128)
+			flush();
+		for (int i = 0; i < start.length(); i++)
+			buffer.put((byte) start.charAt(i));
+		checksum = 0;
+	}
+
+	/**Formats one byte of a record as two hex digits and adds it to the checksum
+	 */
+	void put(int value) {
+		buffer.put(HEX_DIGITS[(value >>> 4) & 0xF]);
+		buffer.put(HEX_DIGITS[value & 0xF]);
+		checksum += value & 0xFF;
+	}
+
+	/**
+	 * @return Sum of the bytes put since begin()
+	 */
+	int checksum() { return checksum; }
+
+	/**Ends a record line with its checksum byte
+	 * @param Checksum byte, computed by the format from checksum()
+	 */
+	void end(int check) {
+		put(check);
+		buffer.put((byte) '\n');
+	}
+
+	/**Writes everything buffered so far to the channel
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			endRecord();
+			writeEnd();
+			flush();
+		}
+		finally {
+			channel.close();
+		}
+	}
+}
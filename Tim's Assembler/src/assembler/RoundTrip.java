@@ -0,0 +1,234 @@
+package assembler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**Checks that an image survives disassembly: disassembles the words a job wrote, assembles the listing again
+ * and compares the two images word by word
+ *
+ * Nothing is assembled twice. A job opening its output through ImageWriter.open hands every word it writes,
+ * and the fill of every gap, to record(), so the check sees exactly the image written by whichever path
+ * produced it, including -m, -t, -k and -l. The words are kept as an int array indexed by address. Paths which
+ * read the source one line at a time also give the line of each address with line(), so a word which comes
+ * back different is reported with the line it came from; the others report only its address.
+ *
+ * The listing is never held in memory: the disassembler writes it into a Reassembler, which lexes each line
+ * straight out of the disassembler's buffer and assembles it, and each word is compared as soon as no label
+ * waits on it.
+ */
+public class RoundTrip {
+	/**
+	 * Most changed words reported one by one; the rest are only counted
+	 */
+	static final int MAX_REPORTED = 20;
+
+	/**
+	 * Words written by the job, and the source line of each, indexed by address; lines may be shorter
+	 */
+	private int[] words = new int[Assembler.FLUSH_WORDS], lines = new int[0];
+	private int length;
+
+	/**Wraps the output of a job, keeping a copy of every word it writes
+	 * @param Writer of the output image
+	 * @return Writer passing everything on to it
+	 */
+	ImageWriter record(ImageWriter out) {
+		return new ImageWriter() {
+			@Override
+			public void write(int word) throws IOException {
+				reserve(1);
+				words[length++] = word;
+				out.write(word);
+			}
+
+			@Override
+			public void write(int[] source, int offset, int count) throws IOException {
+				reserve(count);
+				System.arraycopy(source, offset, words, length, count);
+				length += count;
+				out.write(source, offset, count);
+			}
+
+			@Override
+			public void fill(int count) throws IOException {
+				//Words past the length were never written, so they are zero already
+				reserve(count);
+				length += count;
+				out.fill(count);
+			}
+
+			@Override
+			public boolean hold() throws IOException {
+				return out.hold();
+			}
+
+			@Override
+			public void patch(int address, int payload) throws IOException {
+				words[address] = words[address] & 0xFFFF0000 | payload;
+				out.patch(address, payload);
+			}
+
+			@Override
+			public void release() throws IOException {
+				out.release();
+			}
+
+			@Override
+			public void close() throws IOException {
+				out.close();
+			}
+		};
+	}
+
+	private void reserve(int count) {
+		if (length + count > words.length)
+			words = Arrays.copyOf(words, Math.max(length + count, words.length + (words.length >> 1)));
+	}
+
+	/**Notes the source line of the words one line placed
+	 * @param Address of the first word of the line
+	 * @param Address following its last word
+	 * @param Line number, from 1
+	 */
+	void line(int from, int to, long line) {
+		if (to <= from)
+			return;
+		if (to > lines.length)
+			lines = Arrays.copyOf(lines, Math.max(to, lines.length * 2));
+		Arrays.fill(lines, from, to, (int) Math.min(Integer.MAX_VALUE, line));
+	}
+
+	/**Verifies the round trip of the words recorded, once the job has written its whole image
+	 *
+	 * Diagnostics of the source itself are left to the job; only words the round trip changes are reported.
+	 * @param Application options of the job
+	 * @return Number of words which differ after the round trip
+	 */
+	int verify(AppOptions options) throws IOException {
+		JumpTargets targets = new JumpTargets();
+		disassemble(new Disassembler(targets));
+		targets.limit(length);
+
+		Reassembler listing = new Reassembler(targets, options);
+		try (Disassembler out = new Disassembler(listing, targets, 0)) {
+			disassemble(out);
+		}
+		int changed = listing.finish();
+
+		if (changed > MAX_REPORTED)
+			options.log.println("Round trip changed " + (changed - MAX_REPORTED) + " more word(s)");
+		if (changed == 0 && options.isVerbose) options.log.println("Round trip verified " + length + " words");
+		return changed;
+	}
+
+	/**Feeds the recorded words to a disassembler, passing runs of equal words as runs, as "count*word" image
+	 * lines are
+	 */
+	private void disassemble(Disassembler out) throws IOException {
+		for (int i = 0; i < length;) {
+			int end = i + 1;
+			while (end < length && words[end] == words[i])
+				end++;
+			if (end - i == 1)
+				out.word(words[i]);
+			else
+				out.run(words[i], end - i);
+			i = end;
+		}
+	}
+
+	/**Assembles a listing as the disassembler writes it, comparing each word with the recorded one
+	 *
+	 * The disassembler only flushes whole lines, so every line lies within one buffer handed to write(), and is
+	 * lexed where it is, as MappedSource lines are. Line n of the listing holds the word at address n, so the
+	 * listing image is compared by address and discarded as it goes, like an image being written out.
+	 */
+	private class Reassembler implements WritableByteChannel {
+		private final JumpTargets targets;
+		private final AppOptions options, quiet;
+		private final Lexer tokens = new Lexer();
+		private final ProgramImage image = new ProgramImage(Assembler.FLUSH_WORDS);
+		private final Labels labels;
+		//The listing defines no macros, but directives such as .word need a set to assemble
+		private final Macros macros = new Macros();
+		private final char[] line = new char[OpCodes.MAX_REVERSE_LENGTH];
+		private int changed;
+
+		Reassembler(JumpTargets targets, AppOptions options) {
+			this.targets = targets;
+			this.options = options;
+			this.quiet = new AppOptions(options.fileInput, null, false, false, false);
+			quiet.log = new PrintStream(new OutputStream() {
+				@Override
+				public void write(int b) { }
+			});
+			this.labels = new Labels(quiet);
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			AsciiBuffer text = new AsciiBuffer(src);
+			int written = src.remaining();
+			for (int start = src.position(), end = start; end < src.limit(); start = ++end) {
+				while (src.get(end) != '\n')
+					end++;
+				tokens.lex(text, start, end);
+				int address = image.address();
+				if (!Assembler.assembleLine(tokens, image, labels, macros, quiet) || image.address() != address + 1) {
+					//Keep one word per line, so the words after it are still compared at their own address
+					if (image.address() == address)
+						image.add(words[address]);
+					else
+						image.set(image.indexOf(address), words[address]);
+					report(address, "which does not assemble");
+				}
+				compare(Assembler.FLUSH_WORDS);
+			}
+			src.position(src.limit());
+			return written;
+		}
+
+		/**Compares the words of the listing image which no label waits on, then discards them
+		 * @param Number of final words to hold before comparing; 0 compares whatever is final
+		 */
+		private void compare(int threshold) {
+			int ready = image.indexOf(labels.firstPending());
+			if (ready == 0 || ready < threshold || ready < image.size() - ready)
+				return;
+			for (int i = 0, address = image.base(); i < ready; i++, address++) {
+				int word = image.get(i);
+				if (word != words[address])
+					report(address, "which assembles to " + String.format("%08X", word));
+			}
+			image.discard(ready);
+		}
+
+		private void report(int address, String outcome) {
+			if (changed++ >= MAX_REPORTED)
+				return;
+			int word = words[address], end = OpCodes.interpretReverse(word, line, 0, targets.contains(word & 0xFFFF));
+			options.log.println("Round trip changed the word at address " + String.format("%04X", address)
+					+ (address < lines.length && lines[address] > 0 ? " from line " + lines[address] : "") + ": "
+					+ String.format("%08X", word) + " disassembles to \"" + new String(line, 0, end) + "\", " + outcome);
+		}
+
+		/**Compares the words left once the whole listing has been assembled
+		 * @return Number of words which differ
+		 */
+		int finish() {
+			labels.finish();
+			compare(0);
+			return changed;
+		}
+
+		@Override
+		public boolean isOpen() { return true; }
+
+		@Override
+		public void close() { }
+	}
+}
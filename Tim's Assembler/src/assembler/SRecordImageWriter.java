@@ -0,0 +1,73 @@
+package assembler;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**Streams an image as Motorola S-records, for device programmers
+ *
+ * The file starts with an empty S0 header. Data records are S3, with 32 bit addresses, since the size of the
+ * image is not known until it ends; they are followed by an S5 or S6 record holding the number of data records,
+ * when it fits in 24 bits, and an S7 termination record. Each checksum is the ones' complement of the sum of
+ * the record's count, address and data bytes.
+ *
+ * EX: words C3001234 1F001234 at address 0 > "S30D00000000C30012341F00123484"
+ */
+public class SRecordImageWriter extends RecordImageWriter {
+	/**
+	 * Data records written so far
+	 */
+	private long records;
+
+	/**
+	 * @param Channel the image is written to; closed along with this writer
+	 * @param True to split each word into bytes lowest first
+	 */
+	public SRecordImageWriter(WritableByteChannel channel, boolean isLittleEndian) throws IOException {
+		super(channel, isLittleEndian, 0);
+		begin("S0");
+		put(3);
+		put(0);
+		put(0);
+		end(~checksum());
+	}
+
+	@Override
+	void writeData(long address, byte[] data, int length) throws IOException {
+		if (address > 0xFFFFFFFFL)
+			throw new IOException("Image too large for S-records");
+		begin("S3");
+		put(length + 5);
+		putAddress(address, 4);
+		for (int i = 0; i < length; i++)
+			put(data[i]);
+		end(~checksum());
+		records++;
+	}
+
+	@Override
+	void writeEnd() throws IOException {
+		if (records <= 0xFFFF) {
+			begin("S5");
+			put(3);
+			putAddress(records, 2);
+			end(~checksum());
+		}
+		else if (records <= 0xFFFFFF) {
+			begin("S6");
+			put(4);
+			putAddress(records, 3);
+			end(~checksum());
+		}
+		begin("S7");
+		put(5);
+		putAddress(0, 4);
+		end(~checksum());
+	}
+
+	/**Formats the lowest bytes of an address or count, highest first
+	 */
+	private void putAddress(long value, int bytes) {
+		for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8)
+			put((int) (value >>> shift));
+	}
+}
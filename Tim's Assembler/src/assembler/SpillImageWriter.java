@@ -0,0 +1,160 @@
+package assembler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**Lets the image writer of a format which cannot change what it has written, such as "v2.0 raw" with its runs,
+ * hold words that may still be patched
+ *
+ * Words are passed straight on, except between hold() and release(): they then go to a temporary file of packed
+ * words through a BinaryImageWriter, which patches them in place. release() reads them back and passes them on
+ * in order, with the same fills between them, so the output is the same as if they had never been held. Only
+ * the runs of words held are kept in memory, one pair of ints for each fill between them.
+ */
+class SpillImageWriter implements ImageWriter {
+	private static final int BUFFER_WORDS = 16 * 1024;
+
+	private final ImageWriter out;
+	private FileChannel file;
+	private BinaryImageWriter spill;
+	/**
+	 * Program address of the next word, and of the first word held
+	 */
+	private int address, start;
+	/**
+	 * Runs of words held, two ints each: the gap filled before the run, or -1 if none was, and number of words
+	 */
+	private int[] runs = new int[16];
+	private int runInts;
+	/**
+	 * Gap filled since the last run held, or -1 if none was
+	 */
+	private int gap = -1;
+
+	/**
+	 * @param Writer the words are passed on to; closed along with this writer
+	 */
+	SpillImageWriter(ImageWriter out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(int word) throws IOException {
+		if (spill == null)
+			out.write(word);
+		else {
+			spill.write(word);
+			run(1);
+		}
+		address++;
+	}
+
+	@Override
+	public void write(int[] words, int offset, int length) throws IOException {
+		if (spill == null)
+			out.write(words, offset, length);
+		else {
+			spill.write(words, offset, length);
+			run(length);
+		}
+		address += length;
+	}
+
+	@Override
+	public void fill(int count) throws IOException {
+		if (spill == null)
+			out.fill(count);
+		else {
+			//Even an empty gap is kept, as it ends a record in the record formats
+			spill.fill(count);
+			gap = Math.max(gap, 0) + count;
+		}
+		address += count;
+	}
+
+	/**Adds words written after the last ones held, or after a gap, to the runs held
+	 */
+	private void run(int length) {
+		if (runInts > 0 && gap < 0) {
+			runs[runInts - 1] += length;
+			return;
+		}
+		if (runInts == runs.length)
+			runs = Arrays.copyOf(runs, runInts * 2);
+		runs[runInts++] = gap;
+		runs[runInts++] = length;
+		gap = -1;
+	}
+
+	@Override
+	public boolean hold() throws IOException {
+		if (spill != null)
+			return true;
+		file = FileChannel.open(Files.createTempFile("logitim", ".spill"),
+				StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+		spill = new BinaryImageWriter(file, ByteOrder.nativeOrder());
+		start = address;
+		runInts = 0;
+		gap = -1;
+		return true;
+	}
+
+	@Override
+	public void patch(int address, int payload) throws IOException {
+		spill.patch(address - start, payload);
+	}
+
+	@Override
+	public void release() throws IOException {
+		if (spill == null)
+			return;
+		spill.flush();
+		ByteBuffer bytes = ByteBuffer.allocate(BUFFER_WORDS * 4).order(ByteOrder.nativeOrder());
+		int[] words = new int[BUFFER_WORDS];
+		long position = 0;
+		for (int i = 0; i < runInts; i += 2) {
+			int length = runs[i + 1];
+			if (runs[i] >= 0) {
+				out.fill(runs[i]);
+				position += runs[i] * 4L;
+			}
+			for (int done = 0; done < length; ) {
+				int count = Math.min(BUFFER_WORDS, length - done);
+				bytes.clear();
+				bytes.limit(count * 4);
+				while (bytes.hasRemaining()) {
+					if (file.read(bytes, position + bytes.position()) < 0)
+						throw new EOFException("Held words missing from the temporary file");
+				}
+				bytes.flip();
+				bytes.asIntBuffer().get(words, 0, count);
+				out.write(words, 0, count);
+				position += count * 4L;
+				done += count;
+			}
+		}
+		if (gap >= 0)
+			out.fill(gap);
+
+		spill = null;
+		file.close();
+		file = null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (file != null)
+				file.close();
+		}
+		finally {
+			out.close();
+		}
+	}
+}
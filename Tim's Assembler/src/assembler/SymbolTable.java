@@ -0,0 +1,172 @@
+package assembler;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**Map from label name to word address, built on primitive arrays
+ *
+ * Uses open addressing with linear probing over one int array. Label names are interned into one shared
+ * char pool, and lookups compare against a range of the source buffer, so defining or finding a label boxes
+ * nothing and makes no String. This keeps sources with millions of labels free of per-label garbage.
+ */
+public class SymbolTable {
+	/**
+	 * Returned by find for a label that has not been defined
+	 */
+	public static final int MISSING = -1;
+
+	/**
+	 * Slots of four ints each, so one probe touches one cache line: hash, name offset, name length and address.
+	 * A length of 0 marks an empty slot.
+	 */
+	private static final int HASH = 0, OFFSET = 1, LENGTH = 2, ADDRESS = 3, SLOT_INTS = 4;
+
+	private int[] slots;
+	private char[] names = new char[256];
+	private int namesLength, size, mask;
+
+	public SymbolTable() {
+		this(16);
+	}
+
+	/**
+	 * @param Number of labels expected
+	 */
+	public SymbolTable(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		slots = new int[capacity * SLOT_INTS];
+		mask = capacity - 1;
+	}
+
+	private static int hash(CharSequence source, int start, int end) {
+		int h = 0x811C9DC5;
+		for (int i = start; i < end; i++)
+			h = (h ^ source.charAt(i)) * 0x01000193;
+		return h ^ (h >>> 16);
+	}
+
+	/**Finds the slot holding a name, or the empty slot where it would go
+	 * @return Index of the slot's first int
+	 */
+	private int probe(int h, CharSequence source, int start, int end) {
+		int length = end - start;
+		int slot = h & mask;
+		int at;
+		while (slots[(at = slot * SLOT_INTS) + LENGTH] != 0) {
+			if (slots[at + HASH] == h && slots[at + LENGTH] == length && nameEquals(slots[at + OFFSET], length, source, start))
+				return at;
+			slot = (slot + 1) & mask;
+		}
+		return at;
+	}
+
+	private boolean nameEquals(int offset, int length, CharSequence source, int start) {
+		for (int i = 0; i < length; i++) {
+			if (names[offset + i] != source.charAt(start + i))
+				return false;
+		}
+		return true;
+	}
+
+	/**Looks up the address of a label
+	 * @param Buffer holding the label name
+	 * @param Offset of the first character of the name
+	 * @param Offset one past the last character of the name
+	 * @return Address of the label, or MISSING
+	 */
+	public int find(CharSequence source, int start, int end) {
+		int at = probe(hash(source, start, end), source, start, end);
+		return slots[at + LENGTH] == 0 ? MISSING : slots[at + ADDRESS];
+	}
+
+	/**Defines a label
+	 * @param Buffer holding the label name
+	 * @param Offset of the first character of the name
+	 * @param Offset one past the last character of the name
+	 * @param Address of the word the label points at
+	 * @return False if the label was already defined, in which case its address is left unchanged
+	 */
+	public boolean define(CharSequence source, int start, int end, int address) {
+		int h = hash(source, start, end);
+		int at = probe(h, source, start, end);
+		if (slots[at + LENGTH] != 0)
+			return false;
+
+		int length = end - start;
+		if (namesLength + length > names.length)
+			names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + length));
+		for (int i = 0; i < length; i++)
+			names[namesLength + i] = source.charAt(start + i);
+
+		slots[at + HASH] = h;
+		slots[at + OFFSET] = namesLength;
+		slots[at + LENGTH] = length;
+		slots[at + ADDRESS] = address;
+		namesLength += length;
+		if (++size * 2 > mask + 1)
+			grow();
+		return true;
+	}
+
+	private void grow() {
+		int[] old = slots;
+		allocate((mask + 1) * 2);
+		for (int from = 0; from < old.length; from += SLOT_INTS) {
+			if (old[from + LENGTH] == 0)
+				continue;
+			int slot = old[from + HASH] & mask;
+			while (slots[slot * SLOT_INTS + LENGTH] != 0)
+				slot = (slot + 1) & mask;
+			System.arraycopy(old, from, slots, slot * SLOT_INTS, SLOT_INTS);
+		}
+	}
+
+	/**Sets the address of a label, defining it if needed
+	 * @param Buffer holding the label name
+	 * @param Offset of the first character of the name
+	 * @param Offset one past the last character of the name
+	 * @param New address; may be MISSING to leave the label without one
+	 * @return Previous address of the label, or MISSING
+	 */
+	public int put(CharSequence source, int start, int end, int address) {
+		int at = probe(hash(source, start, end), source, start, end);
+		if (slots[at + LENGTH] == 0) {
+			define(source, start, end, address);
+			return MISSING;
+		}
+		int previous = slots[at + ADDRESS];
+		slots[at + ADDRESS] = address;
+		return previous;
+	}
+
+	/**Receives the labels of a table one at a time
+	 */
+	public interface Visitor {
+		/**
+		 * @param Buffer holding the label name
+		 * @param Offset of the first character of the name
+		 * @param Offset one past the last character of the name
+		 * @param Address of the label
+		 */
+		void visit(CharSequence names, int start, int end, int address);
+	}
+
+	/**Passes every label to a visitor, in no particular order
+	 */
+	public void forEach(Visitor visitor) {
+		CharSequence pool = CharBuffer.wrap(names, 0, namesLength);
+		for (int at = 0; at < slots.length; at += SLOT_INTS) {
+			if (slots[at + LENGTH] != 0)
+				visitor.visit(pool, slots[at + OFFSET], slots[at + OFFSET] + slots[at + LENGTH], slots[at + ADDRESS]);
+		}
+	}
+
+	/**
+	 * @return Number of labels defined
+	 */
+	public int size() { return size; }
+}